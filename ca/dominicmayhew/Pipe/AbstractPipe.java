@@ -0,0 +1,954 @@
+package ca.dominicmayhew.Pipe;
+
+import java.lang.reflect.Array;
+import java.util.Objects;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Abstract Superclass for `Pipe` and its primitive specializations. Holds all of the synchronization logic; subclasses only hold the buffer.
+ * Every access is split into claiming a position (which owns the slot at `index(pos)`), reading or writing the slot, and then publishing/releasing the position.
+ * The claim and publish steps are set at instantiation according to the `Pipe.AccessMode` provided.
+ */
+abstract class AbstractPipe {
+    protected int BUF_SIZE;
+
+    private Semaphore creatorAccess;
+    private Semaphore receiverAccess;
+
+    // Set during instantiation, provide the functional interface for single puts and gets.
+    private Claimer putClaimer;
+    private Releaser putPublisher;
+    private Claimer getClaimer;
+    private Releaser getReleaser;
+    // Set during instantiation, provide the functional interface for batch puts and gets.
+    private BatchPutter batchPutter;
+    private BatchGetter batchGetter;
+
+    private AtomicLong in; // Next position to put.
+    private AtomicLong out; // Next position to get.
+    private AtomicInteger count;
+    private int mask; // `BUF_SIZE - 1` if `BUF_SIZE` is a power of two, otherwise -1.
+
+    // Set during instantiation, decides how producers/consumers wait while the buffer is full/empty.
+    private WaitStrategy waitStrategy;
+    // Set during instantiation, the conditions passed to `waitStrategy`.
+    private BooleanSupplier hasSpace;
+    private BooleanSupplier hasItem;
+
+    // Used by `Pipe.AccessMode.lockFree` and `Pipe.AccessMode.semaphore`.
+    private AtomicLongArray sequence; // Per-slot sequence numbers. A slot is free for sequence `s` when it holds `s`, and full when it holds `s + 1`.
+    // Used only by `Pipe.AccessMode.lockFree`.
+    private PaddedCounter tail; // Next sequence to put.
+    private PaddedCounter head; // Next sequence to get.
+
+    private PipeMetrics metrics; // Null unless metrics were requested at instantiation.
+
+    /**
+     * Sets the claim and publish steps according to the mode `Pipe.AccessMode` provided, without metrics.
+     * @param bufSize size of the buffer. Rounded up to a power of two for `Pipe.AccessMode.lockFree`.
+     * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will put, or 0 if unknown.
+     * @param numReceivers number of threads that will get, or 0 if unknown.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for the default of `mode`.
+     */
+    protected AbstractPipe(int bufSize, Pipe.AccessMode mode, int numCreators, int numReceivers, WaitStrategy waitStrategy) {
+        this(bufSize, mode, numCreators, numReceivers, waitStrategy, null);
+    }
+
+    /**
+     * Sets the claim and publish steps according to the mode `Pipe.AccessMode` provided. See `Pipe` for a description of each mode.
+     * If `metrics` are given, the steps and the `WaitStrategy` are wrapped with counting versions; otherwise they are left as they are, so metrics cost nothing unless requested.
+     * @param bufSize size of the buffer. Rounded up to a power of two for `Pipe.AccessMode.lockFree`.
+     * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will put, or 0 if unknown.
+     * @param numReceivers number of threads that will get, or 0 if unknown.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for the default of `mode`.
+     * @param metrics the metrics to publish, or null for none.
+     */
+    protected AbstractPipe(int bufSize, Pipe.AccessMode mode, int numCreators, int numReceivers, WaitStrategy waitStrategy, PipeMetrics metrics) {
+        if (bufSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1: " + bufSize);
+        }
+        if (mode == Pipe.AccessMode.lockFree) {
+            bufSize = ceilingPowerOfTwo(bufSize);
+        }
+        BUF_SIZE = bufSize;
+        mask = Integer.bitCount(BUF_SIZE) == 1 ? BUF_SIZE - 1 : -1;
+
+        if (mode == Pipe.AccessMode.lockFree) {
+            sequence = new AtomicLongArray(BUF_SIZE);
+            for (int i = 0; i < BUF_SIZE; i++) {
+                sequence.set(i, i);
+            }
+            tail = new PaddedCounter();
+            head = new PaddedCounter();
+            boolean spsc = numCreators == 1 && numReceivers == 1;
+            putClaimer = spsc ? spscPutClaim : lockFreePutClaim;
+            putPublisher = spsc ? spscPutPublish : lockFreePutPublish;
+            getClaimer = spsc ? spscGetClaim : lockFreeGetClaim;
+            getReleaser = spsc ? spscGetRelease : lockFreeGetRelease;
+            batchPutter = spsc ? spscPutAll : lockFreePutAll;
+            batchGetter = spsc ? spscGetAll : lockFreeGetAll;
+            hasSpace = () -> {
+                long pos = tail.get();
+                return sequence.get(index(pos)) - pos >= 0;
+            };
+            hasItem = () -> {
+                long pos = head.get();
+                return sequence.get(index(pos)) - (pos + 1) >= 0;
+            };
+            this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.busySpin();
+        } else if (mode == Pipe.AccessMode.mutex) {
+            creatorAccess = new Semaphore(1, false);
+            receiverAccess = new Semaphore(1, false);
+            count = new AtomicInteger();
+            putClaimer = mutexPutClaim;
+            putPublisher = mutexPutPublish;
+            getClaimer = mutexGetClaim;
+            getReleaser = mutexGetRelease;
+            batchPutter = mutexPutAll;
+            batchGetter = mutexGetAll;
+            hasSpace = () -> count.get() != BUF_SIZE;
+            hasItem = () -> count.get() != 0;
+            this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.busySpin();
+        } else {
+            creatorAccess = new Semaphore(BUF_SIZE, false);
+            receiverAccess = new Semaphore(BUF_SIZE, false);
+            receiverAccess.drainPermits();
+            sequence = new AtomicLongArray(BUF_SIZE);
+            for (int i = 0; i < BUF_SIZE; i++) {
+                sequence.set(i, i);
+            }
+            putClaimer = semaphorePutClaim;
+            putPublisher = semaphorePutPublish;
+            getClaimer = semaphoreGetClaim;
+            getReleaser = semaphoreGetRelease;
+            batchPutter = semaphorePutAll;
+            batchGetter = semaphoreGetAll;
+            hasSpace = () -> creatorAccess.availablePermits() > 0;
+            hasItem = () -> receiverAccess.availablePermits() > 0;
+            this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.blocking();
+        }
+
+        in = new AtomicLong();
+        out = new AtomicLong();
+
+        if (this.waitStrategy instanceof AdaptiveWaitStrategy) {
+            ((AdaptiveWaitStrategy) this.waitStrategy).bind(this);
+        }
+        if (metrics != null) {
+            meter(metrics);
+        }
+    }
+
+    /**
+     * Wraps the put/get steps and the `WaitStrategy` so that they update `metrics`, and registers `metrics`.
+     * @param metrics the metrics of this pipe.
+     */
+    private void meter(PipeMetrics metrics) {
+        metrics.bind(this);
+        this.metrics = metrics;
+        waitStrategy = metrics.meter(waitStrategy, hasSpace);
+        Releaser publish = putPublisher;
+        Releaser release = getReleaser;
+        BatchPutter putAll = batchPutter;
+        BatchGetter getAll = batchGetter;
+        putPublisher = (long pos) -> {
+            publish.release(pos);
+            metrics.puts.increment();
+        };
+        getReleaser = (long pos) -> {
+            release.release(pos);
+            metrics.gets.increment();
+        };
+        batchPutter = (Object src, int off, int len) -> {
+            int k = putAll.putAll(src, off, len);
+            metrics.puts.add(k);
+            return k;
+        };
+        batchGetter = (Object dst, int off, int max, boolean block) -> {
+            int k = getAll.getAll(dst, off, max, block);
+            metrics.gets.add(k);
+            return k;
+        };
+    }
+
+    /**
+     * Copies `k` items from `src`, starting at `src[off]`, into the slots of positions `pos` to `pos + k - 1`.
+     * @param pos the first claimed position.
+     * @param k the number of claimed positions.
+     * @param src the source array of the subclass' element type.
+     * @param off the first index of `src` to copy.
+     * If it throws, the claimed slots are still published, so that the buffer keeps working; their contents are then unspecified.
+     */
+    protected abstract void storeRange(long pos, int k, Object src, int off);
+
+    /**
+     * Copies the items in the slots of positions `pos` to `pos + k - 1` into `dst`, starting at `dst[off]`, and clears the slots if needed.
+     * @param pos the first claimed position.
+     * @param k the number of claimed positions.
+     * @param dst the destination of the subclass' element type.
+     * @param off the first index of `dst` to copy to, if `dst` is indexed.
+     * If it throws, the claimed slots are still freed, so that the buffer keeps working; the items not yet copied are lost.
+     */
+    protected abstract void loadRange(long pos, int k, Object dst, int off);
+
+    /**
+     * Returns the index in the buffer of the slot for position `pos`.
+     * @param pos a position returned by a claim.
+     * @return the index in the buffer of the slot for position `pos`.
+     */
+    protected final int index(long pos) {
+        return mask >= 0 ? (int) pos & mask : (int) (pos % BUF_SIZE);
+    }
+
+    /**
+     * Claims the next position to put. Waits while the buffer is full.
+     * The slot at `index(pos)` belongs to the caller until `publishPut(pos)`.
+     * @return the claimed position.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final long claimPut() throws InterruptedException {
+        return putClaimer.claim(-1, 0);
+    }
+
+    /**
+     * Claims the next position to put, waiting at most `timeoutNanos` while the buffer is full.
+     * @param timeoutNanos the longest time to wait, 0 to not wait at all, or a negative number to wait forever.
+     * @return the claimed position, or -1 if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final long claimPut(long timeoutNanos) throws InterruptedException {
+        return putClaimer.claim(timeoutNanos, deadline(timeoutNanos));
+    }
+
+    /**
+     * Makes the item written to the slot of a claimed position available to consumers.
+     * @param pos the position returned by `claimPut()`.
+     */
+    protected final void publishPut(long pos) {
+        putPublisher.release(pos);
+    }
+
+    /**
+     * Claims the next position to get. Waits while the buffer is empty.
+     * The slot at `index(pos)` belongs to the caller until `releaseGet(pos)`.
+     * @return the claimed position.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final long claimGet() throws InterruptedException {
+        return getClaimer.claim(-1, 0);
+    }
+
+    /**
+     * Claims the next position to get, waiting at most `timeoutNanos` while the buffer is empty.
+     * @param timeoutNanos the longest time to wait, 0 to not wait at all, or a negative number to wait forever.
+     * @return the claimed position, or -1 if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final long claimGet(long timeoutNanos) throws InterruptedException {
+        return getClaimer.claim(timeoutNanos, deadline(timeoutNanos));
+    }
+
+    /**
+     * Claims a position without waiting, for the non-blocking `tryPut()`/`tryGet()` style methods of subclasses.
+     * @param put whether to claim a position to put or to get.
+     * @return the claimed position, or -1 if the buffer is full/empty.
+     */
+    protected final long tryClaim(boolean put) {
+        try {
+            return put ? claimPut(0) : claimGet(0);
+        } catch (InterruptedException ie) {
+            // Not reachable, a claim with no timeout never waits.
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    /**
+     * Frees the slot of a claimed position for producers.
+     * @param pos the position returned by `claimGet()`.
+     */
+    protected final void releaseGet(long pos) {
+        getReleaser.release(pos);
+    }
+
+    /**
+     * Puts between 1 and `len` items from `src`, claiming as many free slots as are available in one step. Waits while the buffer is full.
+     * @param src the source array of the subclass' element type.
+     * @param off the first index of `src` to put.
+     * @param len the number of items left to put.
+     * @return the number of items put.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final int putRange(Object src, int off, int len) throws InterruptedException {
+        return batchPutter.putAll(src, off, len);
+    }
+
+    /**
+     * Gets up to `max` items into `dst`, claiming as many full slots as are available in one step.
+     * @param dst the destination of the subclass' element type.
+     * @param off the first index of `dst` to get to, if `dst` is indexed.
+     * @param max the maximum number of items to get.
+     * @param block whether to wait for at least one item.
+     * @return the number of items got, 0 only if `block` is false.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final int getRange(Object dst, int off, int max, boolean block) throws InterruptedException {
+        if (max <= 0) {
+            return 0;
+        }
+        return batchGetter.getAll(dst, off, max, block);
+    }
+
+    /**
+     * Non-blocking `getRange()`.
+     * @param dst the destination of the subclass' element type.
+     * @param off the first index of `dst` to get to, if `dst` is indexed.
+     * @param max the maximum number of items to get.
+     * @return the number of items got, possibly 0.
+     */
+    protected final int drainRange(Object dst, int off, int max) {
+        try {
+            return getRange(dst, off, max, false);
+        } catch (InterruptedException ie) {
+            // Not reachable, a non-blocking batch get never waits.
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    /**
+     * Puts `src[off]` to `src[off + len - 1]` in the pipeline, in order, claiming as many free slots as are available at each step. Waits while the buffer is full.
+     * Used by the `putAll()` methods of the primitive pipes. The range is checked before any slot is claimed.
+     * @param src the source array of the subclass' element type.
+     * @param off the first index of `src` to put.
+     * @param len the number of items to put.
+     * @throws IndexOutOfBoundsException if the range is not within `src`. Nothing is put.
+     * @throws InterruptedException if the thread is interrupted while waiting for access. Some of the items may already have been put.
+     */
+    protected final void putArray(Object src, int off, int len) throws InterruptedException {
+        Objects.checkFromIndexSize(off, len, Array.getLength(src));
+        int end = off + len;
+        while (off < end) {
+            off += putRange(src, off, end - off);
+        }
+    }
+
+    /**
+     * Waits until at least one item is available, then gets every available item up to `max` into `dst`, starting at `dst[off]`.
+     * Used by the batch get methods of the primitive pipes. The range is checked before any slot is claimed, so a range that does not fit in `dst` loses no item.
+     * @param dst the destination array of the subclass' element type.
+     * @param off the first index of `dst` to get to.
+     * @param max the maximum number of items to get.
+     * @return the number of items got, at least 1 if `max` is positive.
+     * @throws IndexOutOfBoundsException if `dst` has fewer than `max` elements from `off`. Nothing is got.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    protected final int getArray(Object dst, int off, int max) throws InterruptedException {
+        Objects.checkFromIndexSize(off, max, Array.getLength(dst));
+        return getRange(dst, off, max, true);
+    }
+
+    /**
+     * Non-blocking `getArray()`, used by the `drainTo()` methods of the primitive pipes.
+     * @param dst the destination array of the subclass' element type.
+     * @param off the first index of `dst` to get to.
+     * @param max the maximum number of items to get.
+     * @return the number of items got, possibly 0.
+     * @throws IndexOutOfBoundsException if `dst` has fewer than `max` elements from `off`. Nothing is got.
+     */
+    protected final int drainArray(Object dst, int off, int max) {
+        Objects.checkFromIndexSize(off, max, Array.getLength(dst));
+        return drainRange(dst, off, max);
+    }
+
+    /**
+     * Returns the capacity of the buffer.
+     * @return the capacity of the buffer.
+     */
+    public int capacity() {
+        return BUF_SIZE;
+    }
+
+    /**
+     * Returns the number of items in the buffer. Only a snapshot: with concurrent puts and gets, it may be out of date as soon as it returns.
+     * Items that are being put or got at the time may or may not be counted.
+     * @return the number of items in the buffer, between 0 and `capacity()`.
+     */
+    public int size() {
+        long size;
+        if (tail != null) {
+            long h = head.get();
+            size = tail.get() - h;
+        } else if (count != null) {
+            size = count.get();
+        } else {
+            size = receiverAccess.availablePermits();
+        }
+        return (int) Math.max(0, Math.min(BUF_SIZE, size));
+    }
+
+    /**
+     * Returns the metrics of this pipe.
+     * @return the metrics given at instantiation, or null if there are none.
+     */
+    public PipeMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Claim/publish steps used when `Pipe.AccessMode.mutex` is provided at instantiation.
+     * Gains access through a binary semaphore (mutex lock) and then waits until space is available in the buffer. The mutex is held until the item is published.
+     */
+    private Claimer mutexPutClaim = (long timeoutNanos, long deadline) -> {
+        // Acquire mutex.
+        if (!acquireMutex(creatorAccess, timeoutNanos, deadline)) {
+            return -1;
+        }
+        // Wait until there is space in the buffer.
+        if (!awaitHolding(creatorAccess, hasSpace, timeoutNanos, deadline)) {
+            return -1;
+        }
+        // Only the mutex holder moves `in`.
+        return in.get();
+    };
+    private Releaser mutexPutPublish = (long pos) -> {
+        // Publish item and release mutex.
+        in.set(pos + 1);
+        count.incrementAndGet();
+        creatorAccess.release();
+        waitStrategy.signal();
+    };
+    private Claimer mutexGetClaim = (long timeoutNanos, long deadline) -> {
+        // Acquire access.
+        if (!acquireMutex(receiverAccess, timeoutNanos, deadline)) {
+            return -1;
+        }
+        // Wait until there is an item to recieve.
+        if (!awaitHolding(receiverAccess, hasItem, timeoutNanos, deadline)) {
+            return -1;
+        }
+        // Only the mutex holder moves `out`.
+        return out.get();
+    };
+    private Releaser mutexGetRelease = (long pos) -> {
+        // Free slot and release mutex.
+        out.set(pos + 1);
+        count.decrementAndGet();
+        receiverAccess.release();
+        waitStrategy.signal();
+    };
+
+    /**
+     * BatchPutter used when `Pipe.AccessMode.mutex` is provided at instantiation.
+     * Fills every free slot (up to `len`) while holding the mutex.
+     */
+    private BatchPutter mutexPutAll = (Object src, int off, int len) -> {
+        long pos = mutexPutClaim.claim(-1, 0);
+        int k = Math.min(len, BUF_SIZE - count.get());
+        try {
+            storeRange(pos, k, src, off);
+        } finally {
+            in.set(pos + k);
+            count.addAndGet(k);
+            creatorAccess.release();
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * BatchGetter used when `Pipe.AccessMode.mutex` is provided at instantiation.
+     * Empties every full slot (up to `max`) while holding the mutex.
+     */
+    private BatchGetter mutexGetAll = (Object dst, int off, int max, boolean block) -> {
+        long pos;
+        if (block) {
+            pos = mutexGetClaim.claim(-1, 0);
+        } else if (receiverAccess.tryAcquire()) {
+            pos = out.get();
+        } else {
+            return 0;
+        }
+        int k = Math.min(max, count.get());
+        try {
+            loadRange(pos, k, dst, off);
+        } finally {
+            out.set(pos + k);
+            count.addAndGet(-k);
+            receiverAccess.release();
+            if (k > 0) {
+                waitStrategy.signal();
+            }
+        }
+        return k;
+    };
+
+    /**
+     * Claim/publish steps used when `Pipe.AccessMode.semaphore` is provided at instantiation.
+     * Producers acquire permits from a counting semaphore and release a permit on the consumer semaphore once the item is in the buffer, and vice versa.
+     * A permit only says that some slot is full (free), not that the claimed one is: with several producers (consumers), the previous user of the claimed slot may still be writing (reading) it. So the claimed slot's sequence number is awaited too, as in `Pipe.AccessMode.lockFree`.
+     */
+    private Claimer semaphorePutClaim = (long timeoutNanos, long deadline) -> {
+        if (!acquire(creatorAccess, hasSpace, timeoutNanos, deadline)) {
+            return -1;
+        }
+        long pos = in.getAndIncrement();
+        awaitSlot(pos, pos);
+        return pos;
+    };
+    private Releaser semaphorePutPublish = (long pos) -> {
+        sequence.lazySet(index(pos), pos + 1);
+        receiverAccess.release();
+        waitStrategy.signal();
+    };
+    private Claimer semaphoreGetClaim = (long timeoutNanos, long deadline) -> {
+        if (!acquire(receiverAccess, hasItem, timeoutNanos, deadline)) {
+            return -1;
+        }
+        long pos = out.getAndIncrement();
+        awaitSlot(pos, pos + 1);
+        return pos;
+    };
+    private Releaser semaphoreGetRelease = (long pos) -> {
+        sequence.lazySet(index(pos), pos + BUF_SIZE);
+        creatorAccess.release();
+        waitStrategy.signal();
+    };
+
+    /**
+     * BatchPutter used when `Pipe.AccessMode.semaphore` is provided at instantiation.
+     * Waits for one permit, then takes as many further permits as are immediately available (up to `len`) and claims that many slots in one index update.
+     */
+    private BatchPutter semaphorePutAll = (Object src, int off, int len) -> {
+        acquire(creatorAccess, hasSpace, -1, 0);
+        int k = 1 + tryAcquireUpTo(creatorAccess, len - 1);
+        long pos = in.getAndAdd(k);
+        for (int i = 0; i < k; i++) {
+            awaitSlot(pos + i, pos + i);
+        }
+        try {
+            storeRange(pos, k, src, off);
+        } finally {
+            for (int i = 0; i < k; i++) {
+                sequence.lazySet(index(pos + i), pos + i + 1);
+            }
+            receiverAccess.release(k);
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * BatchGetter used when `Pipe.AccessMode.semaphore` is provided at instantiation.
+     * Waits for one permit (if blocking), then takes as many further permits as are immediately available (up to `max`) and claims that many slots in one index update.
+     */
+    private BatchGetter semaphoreGetAll = (Object dst, int off, int max, boolean block) -> {
+        if (!acquire(receiverAccess, hasItem, block ? -1 : 0, 0)) {
+            return 0;
+        }
+        int k = 1 + tryAcquireUpTo(receiverAccess, max - 1);
+        long pos = out.getAndAdd(k);
+        for (int i = 0; i < k; i++) {
+            awaitSlot(pos + i, pos + i + 1);
+        }
+        try {
+            loadRange(pos, k, dst, off);
+        } finally {
+            for (int i = 0; i < k; i++) {
+                sequence.lazySet(index(pos + i), pos + i + BUF_SIZE);
+            }
+            creatorAccess.release(k);
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * Claim/publish steps used when `Pipe.AccessMode.lockFree` is provided at instantiation.
+     * A slot is claimed by CAS on the tail (head) sequence once the slot's sequence number shows it is free (full), and published (released) by advancing the slot's sequence number.
+     */
+    private Claimer lockFreePutClaim = (long timeoutNanos, long deadline) -> {
+        long pos = tail.get();
+        while (true) {
+            long diff = sequence.get(index(pos)) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                contended();
+            } else if (diff < 0) {
+                // Buffer is full, wait until a receiver frees the slot.
+                if (!await(hasSpace, timeoutNanos, deadline)) {
+                    return -1;
+                }
+            }
+            pos = tail.get();
+        }
+    };
+    private Releaser lockFreePutPublish = (long pos) -> {
+        sequence.lazySet(index(pos), pos + 1);
+        waitStrategy.signal();
+    };
+    private Claimer lockFreeGetClaim = (long timeoutNanos, long deadline) -> {
+        long pos = head.get();
+        while (true) {
+            long diff = sequence.get(index(pos)) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                contended();
+            } else if (diff < 0) {
+                // Buffer is empty, wait until a creator fills the slot.
+                if (!await(hasItem, timeoutNanos, deadline)) {
+                    return -1;
+                }
+            }
+            pos = head.get();
+        }
+    };
+    private Releaser lockFreeGetRelease = (long pos) -> {
+        sequence.lazySet(index(pos), pos + BUF_SIZE);
+        waitStrategy.signal();
+    };
+
+    /**
+     * BatchPutter used when `Pipe.AccessMode.lockFree` is provided at instantiation.
+     * Claims the run of consecutive free slots (up to `len`) with a single CAS on the tail sequence.
+     */
+    private BatchPutter lockFreePutAll = (Object src, int off, int len) -> {
+        long pos = tail.get();
+        int k;
+        // Claim a run of slots.
+        while (true) {
+            long diff = sequence.get(index(pos)) - pos;
+            if (diff == 0) {
+                k = 1;
+                while (k < len && k < BUF_SIZE && sequence.get(index(pos + k)) == pos + k) {
+                    k++;
+                }
+                if (tail.compareAndSet(pos, pos + k)) {
+                    break;
+                }
+                contended();
+            } else if (diff < 0) {
+                // Buffer is full, wait until a receiver frees the slot.
+                waitStrategy.await(hasSpace);
+            }
+            pos = tail.get();
+        }
+        // Put items in buffer and publish the slots.
+        try {
+            storeRange(pos, k, src, off);
+        } finally {
+            for (int i = 0; i < k; i++) {
+                sequence.lazySet(index(pos + i), pos + i + 1);
+            }
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * BatchGetter used when `Pipe.AccessMode.lockFree` is provided at instantiation.
+     * Claims the run of consecutive full slots (up to `max`) with a single CAS on the head sequence.
+     */
+    private BatchGetter lockFreeGetAll = (Object dst, int off, int max, boolean block) -> {
+        long pos = head.get();
+        int k;
+        // Claim a run of slots.
+        while (true) {
+            long diff = sequence.get(index(pos)) - (pos + 1);
+            if (diff == 0) {
+                k = 1;
+                while (k < max && k < BUF_SIZE && sequence.get(index(pos + k)) == pos + k + 1) {
+                    k++;
+                }
+                if (head.compareAndSet(pos, pos + k)) {
+                    break;
+                }
+                contended();
+            } else if (diff < 0) {
+                if (!block) {
+                    return 0;
+                }
+                // Buffer is empty, wait until a creator fills the slot.
+                waitStrategy.await(hasItem);
+            }
+            pos = head.get();
+        }
+        // Take items and free the slots.
+        try {
+            loadRange(pos, k, dst, off);
+        } finally {
+            for (int i = 0; i < k; i++) {
+                sequence.lazySet(index(pos + i), pos + i + BUF_SIZE);
+            }
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * Claim/publish steps used when `Pipe.AccessMode.lockFree` is provided with exactly one producer and one consumer.
+     * The tail (head) is only written by the single producer (consumer), so no CAS is needed to claim a slot.
+     */
+    private Claimer spscPutClaim = (long timeoutNanos, long deadline) -> {
+        // Wait until the receiver frees the slot.
+        if (!await(hasSpace, timeoutNanos, deadline)) {
+            return -1;
+        }
+        return tail.get();
+    };
+    private Releaser spscPutPublish = (long pos) -> {
+        sequence.lazySet(index(pos), pos + 1);
+        tail.lazySet(pos + 1);
+        waitStrategy.signal();
+    };
+    private Claimer spscGetClaim = (long timeoutNanos, long deadline) -> {
+        // Wait until the creator fills the slot.
+        if (!await(hasItem, timeoutNanos, deadline)) {
+            return -1;
+        }
+        return head.get();
+    };
+    private Releaser spscGetRelease = (long pos) -> {
+        sequence.lazySet(index(pos), pos + BUF_SIZE);
+        head.lazySet(pos + 1);
+        waitStrategy.signal();
+    };
+
+    /**
+     * BatchPutter used when `Pipe.AccessMode.lockFree` is provided with exactly one producer and one consumer.
+     */
+    private BatchPutter spscPutAll = (Object src, int off, int len) -> {
+        long pos = spscPutClaim.claim(-1, 0);
+        int k = 1;
+        while (k < len && k < BUF_SIZE && sequence.get(index(pos + k)) == pos + k) {
+            k++;
+        }
+        try {
+            storeRange(pos, k, src, off);
+        } finally {
+            for (int i = 0; i < k; i++) {
+                sequence.lazySet(index(pos + i), pos + i + 1);
+            }
+            tail.lazySet(pos + k);
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * BatchGetter used when `Pipe.AccessMode.lockFree` is provided with exactly one producer and one consumer.
+     */
+    private BatchGetter spscGetAll = (Object dst, int off, int max, boolean block) -> {
+        long pos = head.get();
+        if (sequence.get(index(pos)) != pos + 1) {
+            if (!block) {
+                return 0;
+            }
+            pos = spscGetClaim.claim(-1, 0);
+        }
+        int k = 1;
+        while (k < max && k < BUF_SIZE && sequence.get(index(pos + k)) == pos + k + 1) {
+            k++;
+        }
+        try {
+            loadRange(pos, k, dst, off);
+        } finally {
+            for (int i = 0; i < k; i++) {
+                sequence.lazySet(index(pos + i), pos + i + BUF_SIZE);
+            }
+            head.lazySet(pos + k);
+            waitStrategy.signal();
+        }
+        return k;
+    };
+
+    /**
+     * Returns the `System.nanoTime()` at which a wait of `timeoutNanos` ends. Only meaningful for a positive `timeoutNanos`.
+     * @param timeoutNanos the longest time to wait.
+     * @return the deadline of the wait.
+     */
+    private static long deadline(long timeoutNanos) {
+        return timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0;
+    }
+
+    /**
+     * Consults the `WaitStrategy` until `ready`, or until the deadline of a timed wait.
+     * @param ready the condition to wait for.
+     * @param timeoutNanos the timeout the claim was made with: 0 to not wait at all, or a negative number to wait forever.
+     * @param deadline the deadline of the claim, if `timeoutNanos` is positive.
+     * @return true if `ready`, false if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean await(BooleanSupplier ready, long timeoutNanos, long deadline) throws InterruptedException {
+        if (timeoutNanos < 0) {
+            waitStrategy.await(ready);
+            return true;
+        }
+        long remaining = timeoutNanos == 0 ? 0 : deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return ready.getAsBoolean();
+        }
+        return waitStrategy.await(ready, remaining);
+    }
+
+    /**
+     * Takes one permit from `access`, consulting the `WaitStrategy` while none are available.
+     * @param access the semaphore to take a permit from.
+     * @param hasPermit true when `access` has a permit available.
+     * @param timeoutNanos the longest time to wait, 0 to not wait at all, or a negative number to wait forever.
+     * @param deadline the deadline of the wait, if `timeoutNanos` is positive.
+     * @return true if a permit was taken, false if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean acquire(Semaphore access, BooleanSupplier hasPermit, long timeoutNanos, long deadline) throws InterruptedException {
+        while (!access.tryAcquire()) {
+            if (!await(hasPermit, timeoutNanos, deadline)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes a mutex, waiting at most until the deadline of a timed claim. A mutex is only ever held briefly, so it is waited for by blocking rather than through the `WaitStrategy`.
+     * @param mutex the mutex to take.
+     * @param timeoutNanos the longest time to wait, 0 to not wait at all, or a negative number to wait forever.
+     * @param deadline the deadline of the wait, if `timeoutNanos` is positive.
+     * @return true if the mutex was taken, false if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean acquireMutex(Semaphore mutex, long timeoutNanos, long deadline) throws InterruptedException {
+        if (mutex.tryAcquire()) {
+            return true;
+        }
+        contended();
+        if (timeoutNanos < 0) {
+            try {
+                mutex.acquire();
+            } catch (InterruptedException ie) {
+                throw new InterruptedException("Interrupted trying to acquire access");
+            }
+            return true;
+        }
+        long remaining = timeoutNanos == 0 ? 0 : deadline - System.nanoTime();
+        return remaining <= 0 ? mutex.tryAcquire() : mutex.tryAcquire(remaining, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Consults the `WaitStrategy` until `ready` while holding `mutex`, releasing `mutex` if interrupted or timed out.
+     * @param mutex the mutex held by the caller.
+     * @param ready the condition to wait for.
+     * @param timeoutNanos the longest time to wait, 0 to not wait at all, or a negative number to wait forever.
+     * @param deadline the deadline of the wait, if `timeoutNanos` is positive.
+     * @return true if `ready`, false if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean awaitHolding(Semaphore mutex, BooleanSupplier ready, long timeoutNanos, long deadline) throws InterruptedException {
+        boolean isReady = false;
+        try {
+            isReady = await(ready, timeoutNanos, deadline);
+            return isReady;
+        } finally {
+            if (!isReady) {
+                mutex.release();
+            }
+        }
+    }
+
+    /**
+     * Counts a failed attempt to take a mutex or to claim a slot by CAS. Only called on that slow path.
+     */
+    private void contended() {
+        if (metrics != null) {
+            metrics.contended.increment();
+        }
+    }
+
+    /**
+     * Waits until the slot of `pos` holds sequence number `expected`, i.e. until another thread has finished with it.
+     * That thread is between its claim and its publish/release, so the wait is short: spins, then yields.
+     * @param pos a claimed position.
+     * @param expected the sequence number the slot holds once it is ready for the claim.
+     */
+    private void awaitSlot(long pos, long expected) {
+        int index = index(pos);
+        for (int spins = 0; sequence.get(index) != expected; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Takes up to `max` further permits from `access` without waiting.
+     * @param access the semaphore to take permits from.
+     * @param max the maximum number of permits to take.
+     * @return the number of permits taken.
+     */
+    private static int tryAcquireUpTo(Semaphore access, int max) {
+        while (max > 0) {
+            int available = Math.min(max, access.availablePermits());
+            if (available <= 0) {
+                return 0;
+            }
+            if (access.tryAcquire(available)) {
+                return available;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the smallest power of two greater than or equal to `n`.
+     * @param n a positive integer.
+     * @return the smallest power of two greater than or equal to `n`.
+     */
+    private static int ceilingPowerOfTwo(int n) {
+        if (n > (1 << 30)) {
+            throw new IllegalArgumentException("Buffer size must be at most 2^30: " + n);
+        }
+        return n == 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * An `AtomicLong` padded out to its own cache line so that the head and tail sequences of a lock-free pipe do not falsely share.
+     */
+    @SuppressWarnings("unused")
+    private static class PaddedCounter extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+
+    @FunctionalInterface
+    private interface Claimer {
+        // Returns a position whose slot belongs to the caller until it is published/released, or -1 if the wait timed out.
+        abstract long claim(long timeoutNanos, long deadline) throws InterruptedException;
+    }
+    @FunctionalInterface
+    private interface Releaser {
+        abstract void release(long pos);
+    }
+    @FunctionalInterface
+    private interface BatchPutter {
+        // Puts between 1 and `len` items, starting from `src[off]`, and returns how many were put.
+        abstract int putAll(Object src, int off, int len) throws InterruptedException;
+    }
+    @FunctionalInterface
+    private interface BatchGetter {
+        // Gets up to `max` items into `dst` and returns how many were got. Waits for at least one item only if `block` is set.
+        abstract int getAll(Object dst, int off, int max, boolean block) throws InterruptedException;
+    }
+}
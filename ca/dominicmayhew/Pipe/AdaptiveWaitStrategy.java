@@ -0,0 +1,306 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A `WaitStrategy` that chooses how to wait from the waits it observes: spinning while waits are short, as under a high and steady rate, and parking or blocking while they are long, as when traffic is sparse.
+ * Waits are sampled over windows of `WINDOW_NANOS`: their number, mean duration and the fraction that ended within the first `SPINS` checks. At the end of a window the level best suited to the window is chosen; the strategy switches to it once two windows in a row agree.
+ * A wait that outlasts a window is sampled so far and ends the window itself, so the level follows sparse traffic even when no wait ends. And a wait that outlasts `PARK_ABOVE_NANOS`, the mean above which parking is chosen, parks at every level but `block`, so a waiter at the `spin` level does not burn a CPU for the whole of a long gap.
+ * The pipe's occupancy at each switch is recorded with it when the strategy belongs to a pipe.
+ *
+ * Switching is safe at any time: every waiter re-checks its condition on each iteration and reads the level as it goes, and `signal()` always wakes threads blocked at the `block` level, so a thread that blocked before a switch is not stranded after it.
+ * Every switch is kept in `history()`, passed to the listener given at instantiation, and committed as a JFR event.
+ */
+public final class AdaptiveWaitStrategy implements WaitStrategy {
+    /**
+     * How a waiter waits, from lowest latency and highest CPU use to highest latency and no CPU use.
+     */
+    public enum Level { spin, yield, park, block }
+
+    static final int SPINS = 100; // Checks spent spinning at every level but `block`, before yielding or parking.
+    static final long WINDOW_NANOS = 100_000_000;
+    private static final long YIELD_ABOVE_NANOS = 2_000; // Mean wait above which spinning wastes more than it saves.
+    private static final long PARK_ABOVE_NANOS = 20_000;
+    private static final long BLOCK_ABOVE_NANOS = 1_000_000;
+    private static final double SPIN_FAST_FRACTION = 0.9; // Fraction of waits ending while spinning above which spinning is chosen regardless of the mean.
+    private static final int HISTORY = 64;
+    private static final long MIN_PARK_NANOS = 1000;
+    private static final long MAX_PARK_NANOS = 100_000;
+
+    private volatile Level level;
+    private final WaitStrategy blocking = WaitStrategy.blocking();
+    private final Consumer<Switch> listener;
+    private AbstractPipe pipe; // Set by `bind()`, or null.
+
+    // Samples of the current window.
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder fastWaits = new LongAdder(); // Waits that ended within `SPINS` checks.
+    private volatile long windowStart = System.nanoTime();
+    private final AtomicBoolean evaluating = new AtomicBoolean();
+    private Level candidate; // Level chosen by the last window. Only used while `evaluating`.
+
+    private final ArrayDeque<Switch> history = new ArrayDeque<>();
+    private long switches = 0;
+
+    /**
+     * Starts at `Level.park`, between the extremes.
+     * @param listener called on every switch, e.g. to log it, or null.
+     */
+    AdaptiveWaitStrategy(Consumer<Switch> listener) {
+        this.level = Level.park;
+        this.listener = listener;
+    }
+
+    /**
+     * Called by the `Pipe` being instantiated, so that switches record its occupancy.
+     * @param pipe the pipe using this strategy.
+     * @throws IllegalStateException if the strategy already belongs to a pipe.
+     */
+    synchronized void bind(AbstractPipe pipe) {
+        if (this.pipe != null) {
+            throw new IllegalStateException("An adaptive wait strategy belongs to a single pipe.");
+        }
+        this.pipe = pipe;
+    }
+
+    @Override
+    public boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+        if (ready.getAsBoolean()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        long sampleStart = start; // Start of the part of this wait not yet sampled.
+        long deadline = start + timeoutNanos;
+        int attempt = 0;
+        long parkNanos = MIN_PARK_NANOS;
+        boolean isReady;
+        try {
+            while (true) {
+                if (ready.getAsBoolean()) {
+                    isReady = true;
+                    break;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while waiting on the buffer.");
+                }
+                long now = System.nanoTime();
+                long remaining = timeoutNanos >= 0 ? deadline - now : Long.MAX_VALUE;
+                if (remaining <= 0) {
+                    isReady = false;
+                    break;
+                }
+                if (now - sampleStart >= WINDOW_NANOS && now - windowStart >= WINDOW_NANOS) {
+                    // Sample this wait so far and end the window, rather than keep the level until the wait ends.
+                    waits.increment();
+                    waitNanos.add(now - sampleStart);
+                    sampleStart = now;
+                    endWindow(now);
+                }
+                Level l = level;
+                if (l == Level.block) {
+                    isReady = blocking.await(ready, timeoutNanos >= 0 ? remaining : -1);
+                    break;
+                }
+                boolean longWait = now - start >= PARK_ABOVE_NANOS;
+                if (attempt++ < SPINS || (l == Level.spin && !longWait)) {
+                    Thread.onSpinWait();
+                } else if (l == Level.yield && !longWait) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                }
+            }
+        } finally {
+            long end = System.nanoTime();
+            waits.increment();
+            waitNanos.add(end - sampleStart);
+            if (attempt <= SPINS && level != Level.block) {
+                fastWaits.increment();
+            }
+            if (end - windowStart >= WINDOW_NANOS) {
+                endWindow(end);
+            }
+        }
+        return isReady;
+    }
+
+    /**
+     * Wakes threads blocked at the `block` level. Always done, whatever the current level, since threads may have blocked before a switch.
+     */
+    @Override
+    public void signal() {
+        blocking.signal();
+    }
+
+    /**
+     * Returns the current level.
+     * @return the current level.
+     */
+    public Level level() {
+        return level;
+    }
+
+    /**
+     * Returns the number of switches so far.
+     * @return the number of switches so far.
+     */
+    public synchronized long switches() {
+        return switches;
+    }
+
+    /**
+     * Returns the most recent switches, oldest first.
+     * @return up to the last 64 switches.
+     */
+    public synchronized List<Switch> history() {
+        return new ArrayList<>(history);
+    }
+
+    public String toString() {
+        return "adaptive(" + level + ")";
+    }
+
+    /**
+     * Evaluates the window that ended at `now`, unless another thread already is.
+     * @param now the end of the window.
+     */
+    private void endWindow(long now) {
+        if (evaluating.compareAndSet(false, true)) {
+            try {
+                evaluate(now);
+            } finally {
+                evaluating.set(false);
+            }
+        }
+    }
+
+    /**
+     * Ends the current window: chooses the level suited to it, and switches once two windows in a row chose the same level.
+     * @param now the end of the window.
+     */
+    private void evaluate(long now) {
+        long n = waits.sumThenReset();
+        long nanos = waitNanos.sumThenReset();
+        long fast = fastWaits.sumThenReset();
+        windowStart = now;
+        if (n == 0) {
+            return;
+        }
+        long meanWait = nanos / n;
+        double fastFraction = (double) fast / n;
+        Level chosen;
+        if (fastFraction >= SPIN_FAST_FRACTION || meanWait < YIELD_ABOVE_NANOS) {
+            chosen = Level.spin;
+        } else if (meanWait < PARK_ABOVE_NANOS) {
+            chosen = Level.yield;
+        } else if (meanWait < BLOCK_ABOVE_NANOS) {
+            chosen = Level.park;
+        } else {
+            chosen = Level.block;
+        }
+        Level previous = candidate;
+        candidate = chosen;
+        if (chosen == level || chosen != previous) {
+            return;
+        }
+        Switch s = new Switch(level, chosen, n, meanWait, fastFraction, occupancy());
+        level = chosen;
+        synchronized (this) {
+            switches++;
+            if (history.size() == HISTORY) {
+                history.removeFirst();
+            }
+            history.addLast(s);
+        }
+        SwitchEvent event = new SwitchEvent();
+        if (event.shouldCommit()) {
+            event.from = s.from.name();
+            event.to = s.to.name();
+            event.waits = s.waits;
+            event.meanWaitNanos = s.meanWaitNanos;
+            event.fastFraction = s.fastFraction;
+            event.occupancy = s.occupancy;
+            event.commit();
+        }
+        if (listener != null) {
+            listener.accept(s);
+        }
+    }
+
+    private double occupancy() {
+        AbstractPipe p = pipe;
+        return p == null ? -1 : (double) p.size() / p.capacity();
+    }
+
+    /**
+     * One switch between levels, with the samples of the window that caused it.
+     */
+    public static final class Switch {
+        final long time = System.currentTimeMillis();
+        final Level from;
+        final Level to;
+        final long waits;
+        final long meanWaitNanos;
+        final double fastFraction;
+        final double occupancy;
+
+        Switch(Level from, Level to, long waits, long meanWaitNanos, double fastFraction, double occupancy) {
+            this.from = from;
+            this.to = to;
+            this.waits = waits;
+            this.meanWaitNanos = meanWaitNanos;
+            this.fastFraction = fastFraction;
+            this.occupancy = occupancy;
+        }
+
+        /** Wall-clock time of the switch, in ms. */
+        public long time() { return time; }
+        public Level from() { return from; }
+        public Level to() { return to; }
+        /** Number of waits in the window. */
+        public long waits() { return waits; }
+        public long meanWaitNanos() { return meanWaitNanos; }
+        /** Fraction of the waits in the window that ended while spinning. */
+        public double fastFraction() { return fastFraction; }
+        /** Fraction of the pipe's capacity in use at the switch, or -1 if the strategy belongs to no pipe. */
+        public double occupancy() { return occupancy; }
+
+        public String toString() {
+            return String.format("wait strategy %s -> %s: %d waits, mean %.1f us, %.0f%% while spinning, occupancy %s",
+                from, to, waits, meanWaitNanos / 1e3, fastFraction * 100, occupancy < 0 ? "unknown" : String.format("%.0f%%", occupancy * 100));
+        }
+    }
+
+    @Name("ca.dominicmayhew.Pipe.WaitSwitch")
+    @Label("Pipe Wait Strategy Switch")
+    @Category("Pipe")
+    @Description("An adaptive wait strategy switching level after observing its waits")
+    static final class SwitchEvent extends Event {
+        @Label("From")
+        String from;
+        @Label("To")
+        String to;
+        @Label("Waits")
+        long waits;
+        @Label("Mean Wait (ns)")
+        long meanWaitNanos;
+        @Label("Fraction Spinning")
+        double fastFraction;
+        @Label("Occupancy")
+        double occupancy;
+    }
+}
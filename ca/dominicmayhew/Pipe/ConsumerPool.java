@@ -0,0 +1,402 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A pool of consumers of a `Pipe` whose size follows the pipe's backlog, between a minimum and a maximum.
+ * A supervisor thread samples the depth of the pipe and the fraction of time the consumers spend waiting for items. It adds a consumer when the backlog is high or has grown for several samples in a row, and retires one when the backlog is low and the consumers are mostly idle.
+ * After any change it waits for the cooldown before changing again, so the pool does not flap.
+ *
+ * A consumer is retired gracefully: it finishes the item it holds and stops at its next poll of the pipe, so it is never interrupted in the middle of an item.
+ * A handler that throws a `RuntimeException` drops that item, which is counted as failed; the consumer goes on with the next one, so the pool never counts a dead consumer.
+ * Every decision is kept in `decisions()`, counted in `metrics()` and committed as a JFR event.
+ *
+ * @param <T> the type of items in the pipe.
+ */
+public class ConsumerPool<T> {
+    private static final long POLL_MILLIS = 10; // How long a consumer waits for an item before checking whether it was retired.
+    private static final double HIGH_BACKLOG = 0.5; // Fraction of the capacity above which the pool grows.
+    private static final double LOW_BACKLOG = 0.1; // Fraction of the capacity below which the pool may shrink.
+    private static final double IDLE = 0.5; // Fraction of the consumers' time spent waiting above which the pool may shrink.
+    private static final int GROWING_SAMPLES = 3; // Consecutive samples of a growing backlog after which the pool grows.
+    private static final int HISTORY = 64;
+
+    private final Pipe<T> pipe;
+    private final Supplier<Handler<T>> handlers;
+    private final int min;
+    private final int max;
+    private final long cooldownNanos;
+    private final long sampleMillis;
+    private final String name;
+    private final ThreadFactory threads;
+
+    private final List<Member> consumers = new ArrayList<>(); // Guarded by `this`.
+    private final List<Member> retired = new ArrayList<>(); // Retired but possibly still finishing an item. Guarded by `this`.
+    private final LongAdder waitNanos = new LongAdder(); // Time every consumer spent waiting for an item.
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder(); // Items whose handler threw.
+    private final ArrayDeque<Decision> decisions = new ArrayDeque<>(); // Guarded by `this`.
+    private long scaleUps = 0;
+    private long scaleDowns = 0;
+    private int nextId = 0;
+    private final List<String> unstopped = new ArrayList<>(); // Consumers still running after `stop()`. Guarded by `this`.
+    private Thread supervisor;
+    private volatile boolean stopping = false;
+
+    /**
+     * Handles the items of one consumer. Each consumer gets its own handler, so a handler needs no synchronization.
+     * @param <T> the type of items handled.
+     */
+    public interface Handler<T> {
+        /**
+         * Handles one item.
+         * @param item the item got from the pipe.
+         * @param getRequestTime when the consumer started waiting for the item, from `System.nanoTime()`.
+         * @throws InterruptedException if the consumer is interrupted, which stops it.
+         */
+        void handle(T item, long getRequestTime) throws InterruptedException;
+
+        /**
+         * Called once the consumer has stopped, from its own thread.
+         */
+        default void close() {}
+    }
+
+    /**
+     * Instantiates the pool, not yet started, running its consumers on platform threads.
+     * @param name the name of the pool, used to name its threads.
+     * @param pipe the pipe to consume.
+     * @param handlers creates the handler of each new consumer.
+     * @param min the fewest consumers, started by `start()`.
+     * @param max the most consumers.
+     * @param cooldown the shortest time between two changes of the pool's size.
+     * @param unit the unit of `cooldown`.
+     * @throws IllegalArgumentException if `min` is less than 1 or more than `max`.
+     */
+    public ConsumerPool(String name, Pipe<T> pipe, Supplier<Handler<T>> handlers, int min, int max, long cooldown, TimeUnit unit) {
+        this(name, pipe, handlers, min, max, cooldown, unit, Thread::new);
+    }
+
+    /**
+     * Instantiates the pool, not yet started.
+     * @param name the name of the pool, used to name its threads.
+     * @param pipe the pipe to consume.
+     * @param handlers creates the handler of each new consumer.
+     * @param min the fewest consumers, started by `start()`.
+     * @param max the most consumers.
+     * @param cooldown the shortest time between two changes of the pool's size.
+     * @param unit the unit of `cooldown`.
+     * @param threads creates the thread of each new consumer, e.g. a virtual thread. The supervisor always runs on a platform thread.
+     * @throws IllegalArgumentException if `min` is less than 1 or more than `max`.
+     */
+    public ConsumerPool(String name, Pipe<T> pipe, Supplier<Handler<T>> handlers, int min, int max, long cooldown, TimeUnit unit, ThreadFactory threads) {
+        if (min < 1 || min > max) {
+            throw new IllegalArgumentException("Pool size must satisfy 1 <= min <= max: " + min + ", " + max);
+        }
+        this.name = name;
+        this.pipe = pipe;
+        this.handlers = handlers;
+        this.threads = threads;
+        this.min = min;
+        this.max = max;
+        this.cooldownNanos = unit.toNanos(cooldown);
+        // Several samples per cooldown, so a decision is based on a trend rather than a single sample.
+        this.sampleMillis = Math.max(10, unit.toMillis(cooldown) / 5);
+    }
+
+    /**
+     * Starts `min` consumers and the supervisor.
+     * @throws IllegalStateException if the pool was already started.
+     */
+    public synchronized void start() {
+        if (supervisor != null) {
+            throw new IllegalStateException("Pool already started.");
+        }
+        for (int i = 0; i < min; i++) {
+            add();
+        }
+        supervisor = new Thread(this::supervise, name + "-supervisor");
+        supervisor.setDaemon(true);
+        supervisor.start();
+    }
+
+    /**
+     * Stops the supervisor and retires every consumer, letting each finish its current item. Consumers still running after `timeout` are interrupted, and waited for up to `timeout` again.
+     * Consumers that ignore the interrupt are left running, and named by `unstopped()`.
+     * @param timeout the longest time to wait for the consumers to stop by themselves, and then after interrupting them.
+     * @param unit the unit of `timeout`.
+     * @return true if every consumer stopped by itself, false if some had to be interrupted.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        List<Member> stopped;
+        synchronized (this) {
+            stopping = true;
+            if (supervisor == null) {
+                return true;
+            }
+            supervisor.interrupt();
+            stopped = new ArrayList<>(consumers);
+            stopped.addAll(retired);
+            consumers.clear();
+            retired.clear();
+        }
+        supervisor.join();
+        for (Member member : stopped) {
+            member.retired = true;
+        }
+        boolean graceful = true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Member> interrupted = new ArrayList<>();
+        for (Member member : stopped) {
+            TimeUnit.NANOSECONDS.timedJoin(member.thread, Math.max(1, deadline - System.nanoTime()));
+            if (member.thread.isAlive()) {
+                graceful = false;
+                member.thread.interrupt();
+                interrupted.add(member);
+            }
+        }
+        deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Member member : interrupted) {
+            TimeUnit.NANOSECONDS.timedJoin(member.thread, Math.max(1, deadline - System.nanoTime()));
+            if (member.thread.isAlive()) {
+                synchronized (this) {
+                    unstopped.add(member.thread.getName());
+                }
+            }
+        }
+        return graceful;
+    }
+
+    /**
+     * Returns the consumers that `stop()` could not stop, even by interrupting them, e.g. because their handler swallows interrupts.
+     * @return the names of the consumer threads still running after `stop()`.
+     */
+    public synchronized List<String> unstopped() {
+        return new ArrayList<>(unstopped);
+    }
+
+    /**
+     * Returns the current number of consumers.
+     * @return the number of consumers that have not been retired.
+     */
+    public synchronized int size() {
+        return consumers.size();
+    }
+
+    /**
+     * Returns the most recent scaling decisions, oldest first.
+     * @return up to the last 64 decisions.
+     */
+    public synchronized List<Decision> decisions() {
+        return new ArrayList<>(decisions);
+    }
+
+    /**
+     * Returns the pool's measurements by name, in a fixed order. Used for machine-readable output.
+     * @return the current size, bounds, number of scale ups and downs, items processed and failed, and consumers left running by `stop()`.
+     */
+    public synchronized Map<String, Long> metrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("consumers", (long) consumers.size());
+        metrics.put("minConsumers", (long) min);
+        metrics.put("maxConsumers", (long) max);
+        metrics.put("scaleUps", scaleUps);
+        metrics.put("scaleDowns", scaleDowns);
+        metrics.put("processed", processed.sum());
+        metrics.put("failed", failed.sum());
+        metrics.put("unstopped", (long) unstopped.size());
+        return metrics;
+    }
+
+    /**
+     * Samples the pipe every `sampleMillis` and decides whether to change the size of the pool, until interrupted.
+     */
+    private void supervise() {
+        long lastChange = System.nanoTime();
+        long lastSample = lastChange;
+        long lastWait = waitNanos.sum();
+        int lastBacklog = pipe.size();
+        int growing = 0;
+        try {
+            while (!stopping) {
+                Thread.sleep(sampleMillis);
+                long now = System.nanoTime();
+                long wait = waitNanos.sum();
+                int backlog = pipe.size();
+                int size = size();
+                // Capped, since waits are added when they end and retired consumers may still add theirs.
+                double idle = size == 0 ? 0 : Math.min(1, (double) (wait - lastWait) / ((now - lastSample) * size));
+                double fill = (double) backlog / pipe.capacity();
+                growing = backlog > lastBacklog ? growing + 1 : 0;
+                lastSample = now;
+                lastWait = wait;
+                lastBacklog = backlog;
+                if (now - lastChange < cooldownNanos) {
+                    continue;
+                }
+                if (size < max && (fill >= HIGH_BACKLOG || growing >= GROWING_SAMPLES)) {
+                    decide(size, size + 1, backlog, idle, fill >= HIGH_BACKLOG ? "backlog high" : "backlog growing");
+                    lastChange = now;
+                    growing = 0;
+                } else if (size > min && fill < LOW_BACKLOG && idle >= IDLE) {
+                    decide(size, size - 1, backlog, idle, "consumers idle");
+                    lastChange = now;
+                }
+            }
+        } catch (InterruptedException ie) {
+            return;
+        }
+    }
+
+    /**
+     * Applies and records one decision.
+     */
+    private void decide(int from, int to, int backlog, double idle, String reason) {
+        Decision decision = new Decision(from, to, backlog, idle, reason);
+        synchronized (this) {
+            if (stopping) {
+                return;
+            }
+            if (to > from) {
+                add();
+                scaleUps++;
+            } else {
+                // Retire the newest consumer, at its next poll.
+                Member member = consumers.remove(consumers.size() - 1);
+                member.retired = true;
+                retired.removeIf(m -> !m.thread.isAlive());
+                retired.add(member);
+                scaleDowns++;
+            }
+            if (decisions.size() == HISTORY) {
+                decisions.removeFirst();
+            }
+            decisions.addLast(decision);
+        }
+        DecisionEvent event = new DecisionEvent();
+        if (event.shouldCommit()) {
+            event.pool = name;
+            event.from = from;
+            event.to = to;
+            event.backlog = backlog;
+            event.idle = idle;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts one consumer. Called holding the lock.
+     */
+    private void add() {
+        Member member = new Member(handlers.get());
+        member.thread = threads.newThread(member);
+        member.thread.setName(name + "-" + nextId++);
+        consumers.add(member);
+        member.thread.start();
+    }
+
+    /**
+     * One consumer: gets items and hands them to its handler until retired.
+     */
+    private final class Member implements Runnable {
+        final Handler<T> handler;
+        Thread thread;
+        volatile boolean retired = false;
+
+        Member(Handler<T> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!retired) {
+                    long getRequestTime = System.nanoTime();
+                    T item = pipe.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    waitNanos.add(System.nanoTime() - getRequestTime);
+                    if (item != null) {
+                        try {
+                            handler.handle(item, getRequestTime);
+                            processed.increment();
+                        } catch (RuntimeException e) {
+                            // Drop the item, as `ResequencingPipe.worker()` does, rather than let the consumer die while still counted.
+                            failed.increment();
+                        }
+                    }
+                }
+            } catch (InterruptedException ie) {
+                return;
+            } finally {
+                handler.close();
+            }
+        }
+    }
+
+    /**
+     * One change of the pool's size, with the samples that caused it.
+     */
+    public static final class Decision {
+        final long time = System.currentTimeMillis();
+        final int from;
+        final int to;
+        final int backlog;
+        final double idle;
+        final String reason;
+
+        Decision(int from, int to, int backlog, double idle, String reason) {
+            this.from = from;
+            this.to = to;
+            this.backlog = backlog;
+            this.idle = idle;
+            this.reason = reason;
+        }
+
+        /** Wall-clock time of the decision, in ms. */
+        public long time() { return time; }
+        public int from() { return from; }
+        public int to() { return to; }
+        /** Items in the pipe when the decision was made. */
+        public int backlog() { return backlog; }
+        /** Fraction of the consumers' time spent waiting for items over the last sample. */
+        public double idle() { return idle; }
+        public String reason() { return reason; }
+
+        public String toString() {
+            return String.format("consumers %d -> %d: %s, backlog %d, %.0f%% idle", from, to, reason, backlog, idle * 100);
+        }
+    }
+
+    @Name("ca.dominicmayhew.Pipe.PoolDecision")
+    @Label("Consumer Pool Decision")
+    @Category("Pipe")
+    @Description("An elastic consumer pool adding or retiring a consumer")
+    static final class DecisionEvent extends Event {
+        @Label("Pool")
+        String pool;
+        @Label("From")
+        int from;
+        @Label("To")
+        int to;
+        @Label("Backlog")
+        int backlog;
+        @Label("Idle Fraction")
+        double idle;
+        @Label("Reason")
+        String reason;
+    }
+}
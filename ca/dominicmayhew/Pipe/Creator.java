@@ -1,8 +1,10 @@
 package ca.dominicmayhew.Pipe;
 
+import java.util.Queue;
+
  /**
  * A simulated producer that puts `Records` onto a `Pipe`.
- * `Records` are marked with a processing stamp, the time that the `Creator` requested access to the Pipe, and the time that access was completed.
+ * `Records` are marked with a processing stamp and the time that the `Creator` requested access to the Pipe. The time until access was completed is recorded by the `Creator` itself, since the `Record` belongs to the `Receivers` once it is put.
  * During creation of the record, prior to requesting access to the pipe, the `Creator` busy waits for a prescribed interval to represent processing time.
  * Will run until the thread is interrupted.
  * 
@@ -12,48 +14,119 @@ package ca.dominicmayhew.Pipe;
 
 class Creator extends Worker<Record> {
     private static int creatorCount = 0;
+    private Pipe<Record> returned; // Records returned by Receivers for reuse, or null if `params.RECYCLE` is off.
+    private Queue<PipeTest.Results> results; // Collects the latencies of every Worker of the test run.
+    private PipeTest.Results latencies = new PipeTest.Results(); // Written only by this Creator's thread.
 
     /**
      * Takes the pipe that this `Creator` will attach to.
+     * If `params.RECYCLE` is set, the `Creator` gets its own return ring, large enough for every `Record` it can have in flight, so that `Receivers` never have to drop one.
      * @param pipe the pipe that this `Creator` will attach to.
+     * @param params the parameters of the test run.
+     * @param results the queue that this `Creator` adds its put latencies to when it stops.
      */
-    public Creator (Pipe<Record> pipe) {
-        super(creatorCount++, pipe);
+    public Creator (Pipe<Record> pipe, Params params, Queue<PipeTest.Results> results) {
+        super(creatorCount++, pipe, params);
+        this.results = results;
+        if (params.RECYCLE) {
+            // Many Receivers return, only this Creator takes.
+            returned = new Pipe<Record>(params.BUF_SIZE + params.numReceivers + 1, Pipe.AccessMode.lockFree, 0, 1);
+        }
     }
 
     /**
      * The `Runnable` interface to be submitted to an `ExecutorService`.
      * Creating a `Record` involves busy waiting for a prescribed interval to simulate processing time.
-     * `Records` are marked with a processing stamp, the time that the `Creator` requested access to the pipe, and the time that access was completed.
+     * `Records` are marked with a processing stamp and the time that the `Creator` requested access to the pipe. The time each `put()` took is recorded into this `Creator`'s own histogram, which is handed over when it stops.
+     * If `params.RATE` is set, `Records` are instead put on a fixed schedule (see `runOpenLoop()`).
      * Will run until the thread is interrupted.
      */
     @Override
     public void run() {
-        while (true) {
-            Record nextRecord;
-            try {
-                nextRecord = create();
-                nextRecord.setPutRequestTime(System.currentTimeMillis());
-                pipe.put(nextRecord);
-                nextRecord.setPutCompleteTime(System.currentTimeMillis());
-            } catch (ProcessingException pe) {
-                printExceptionMessage(pe);
-                return;
-            } catch (InterruptedException ie) {
+        try {
+            if (params.RATE > 0) {
+                runOpenLoop();
                 return;
             }
+            while (true) {
+                Record nextRecord = create();
+                put(nextRecord);
+            }
+        } catch (ProcessingException pe) {
+            printExceptionMessage(pe);
+        } catch (InterruptedException ie) {
+            return;
+        } finally {
+            results.add(latencies);
+        }
+    }
+
+    /**
+     * Puts a `Record` every `numCreators / RATE` seconds, on a schedule fixed when the `Creator` starts; `Creators` are staggered over one interval.
+     * A `Record` is stamped with the time it was scheduled, not the time it was put. If the pipe holds the `Creator` back, the late `Records` are put as soon as it can and keep their scheduled times,
+     * so that the time spent behind schedule counts toward their latency instead of silently lowering the offered rate (coordinated omission).
+     * @throws ProcessingException if a `Record` is stamped more than once.
+     * @throws InterruptedException if the thread is interrupted while waiting for space.
+     */
+    private void runOpenLoop() throws ProcessingException, InterruptedException {
+        long interval = (long) (params.numCreators * 1e9 / params.RATE);
+        long next = System.nanoTime() + interval * (getId() % params.numCreators) / params.numCreators;
+        while (true) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                park(delay);
+            }
+            Record nextRecord = create(false);
+            nextRecord.setIntendedTime(next);
+            put(nextRecord);
+            next += interval;
         }
     }
 
+    /**
+     * Stamps the put request time of a `Record`, puts it, stamps its put complete time and records how long the put took.
+     * A `Receiver` may already have the `Record` when `put()` returns, so only the put complete time, which it waits for, is stamped afterwards.
+     * @param nextRecord the `Record` to put.
+     * @throws ProcessingException if the `Record` was already stamped.
+     * @throws InterruptedException if the thread is interrupted while waiting for space.
+     */
+    private void put(Record nextRecord) throws ProcessingException, InterruptedException {
+        long putRequestTime = System.nanoTime();
+        nextRecord.setPutRequestTime(putRequestTime);
+        pipe.put(nextRecord);
+        long putCompleteTime = System.nanoTime();
+        nextRecord.setPutCompleteTime(putCompleteTime);
+        latencies.recordPut(putCompleteTime - putRequestTime);
+    }
+
     /**
      * Busy waits for a prescribed interval, then creates a record with a unique creation stamp.
+     * When recycling, a `Record` returned by a `Receiver` is reused if one is available, so that the steady state allocates nothing.
      * @return the created `Record`.
+     * @throws InterruptedException if the thread is interrupted while simulating work.
      */
-    private Record create() {
+    private Record create() throws InterruptedException {
+        return create(true);
+    }
+
+    /**
+     * Creates a record with a unique creation stamp, optionally simulating work first. In an open-loop test the schedule stands for the work, so there is none.
+     * @param work whether to simulate work first.
+     * @return the created `Record`.
+     * @throws InterruptedException if the thread is interrupted while simulating work.
+     */
+    private Record create(boolean work) throws InterruptedException {
         // Simulate work period.
-        spin();
-        // Create new record.
-        Record nextRecord = new Record(getStamp());
+        if (work) {
+            spin();
+        }
+        // Create new record, or reuse a returned one.
+        Record nextRecord = returned == null ? null : returned.tryGet();
+        if (nextRecord == null) {
+            nextRecord = new Record(getStamp(), returned);
+        } else {
+            nextRecord.reset(getStamp());
+        }
         processedCount++;
         return nextRecord;
     }
@@ -0,0 +1,302 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A FIFO pipeline whose capacity grows under bursts and shrinks again when the buffer stays nearly empty, between a minimum and a maximum.
+ * Items are kept in a linked list of fixed-size array segments. A segment is linked when producers reach it and unlinked once every slot in it has been got. The slot array of an unlinked segment goes to a free list of `FREE_SEGMENTS` arrays, which new segments take from before allocating, so a steady flow of items allocates no new arrays.
+ * Memory therefore follows the number of items in flight rather than the maximum capacity: after a burst, drained arrays beyond the free list are left to the garbage collector.
+ *
+ * The capacity limits how many items may be in the buffer. When a producer finds the buffer at capacity, it doubles the capacity (up to the maximum) instead of waiting; it only waits at the maximum.
+ * Once most of the capacity has gone unused over several segments' (and at least a whole capacity's) worth of gets, the capacity is halved (down to the minimum). Halving only lowers the limit; the memory of the items in flight is released as their segments drain.
+ * Both are single CAS updates, so resizing never stops producers or consumers.
+ * Positions are claimed as in `Pipe.AccessMode.lockFree`, by incrementing a put and a get counter; null items are not allowed since an empty slot holds null.
+ */
+public class ElasticPipe<T> {
+    private static final int MAX_SEGMENT_SIZE = 1024;
+    private static final int SHRINK_AFTER = 8; // Consecutive low-occupancy samples before shrinking.
+    private static final int FREE_SEGMENTS = 4; // Drained slot arrays kept for reuse.
+
+    private final int minCapacity;
+    private final int maxCapacity;
+    private final int segmentSize;
+    private final AtomicInteger capacity;
+    private final AtomicInteger size = new AtomicInteger(); // Items claimed by producers and not yet got.
+    private final AtomicLong in = new AtomicLong(); // Next position to put.
+    private final AtomicLong out = new AtomicLong(); // Next position to get.
+    private final AtomicReference<Segment> head; // Oldest segment that may still have items.
+    private final AtomicReference<Segment> tail; // Newest segment reached so far. Only moves forward.
+    private final AtomicInteger lowSamples = new AtomicInteger();
+    private final AtomicLong grows = new AtomicLong();
+    private final AtomicLong shrinks = new AtomicLong();
+    private final AtomicReferenceArray<AtomicReferenceArray<Object>> free = new AtomicReferenceArray<>(FREE_SEGMENTS); // Drained slot arrays, every slot null.
+    private final AtomicLong allocated = new AtomicLong(); // Slot arrays ever allocated.
+
+    private final WaitStrategy waitStrategy;
+    private final BooleanSupplier hasSpace;
+    private final BooleanSupplier hasItem;
+
+    /**
+     * Instantiates the pipe with a blocking `WaitStrategy`, so idle producers and consumers of many pipes cost no CPU.
+     * @param minCapacity the initial and smallest capacity.
+     * @param maxCapacity the largest capacity.
+     */
+    public ElasticPipe(int minCapacity, int maxCapacity) {
+        this(minCapacity, maxCapacity, null);
+    }
+
+    /**
+     * Instantiates the pipe. The segment size is `minCapacity` rounded up to a power of two, between 16 and 1024.
+     * @param minCapacity the initial and smallest capacity.
+     * @param maxCapacity the largest capacity.
+     * @param waitStrategy how to wait while the buffer is full at the maximum capacity, or empty; null for `WaitStrategy.blocking()`.
+     * @throws IllegalArgumentException if `minCapacity` is less than 1 or more than `maxCapacity`.
+     */
+    public ElasticPipe(int minCapacity, int maxCapacity, WaitStrategy waitStrategy) {
+        if (minCapacity < 1 || minCapacity > maxCapacity) {
+            throw new IllegalArgumentException("Capacity must satisfy 1 <= min <= max: " + minCapacity + ", " + maxCapacity);
+        }
+        this.minCapacity = minCapacity;
+        this.maxCapacity = maxCapacity;
+        segmentSize = Math.min(MAX_SEGMENT_SIZE, Math.max(16, Integer.highestOneBit(minCapacity - 1) << 1));
+        capacity = new AtomicInteger(minCapacity);
+        Segment first = newSegment(0);
+        head = new AtomicReference<>(first);
+        tail = new AtomicReference<>(first);
+        this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.blocking();
+        hasSpace = () -> size.get() < capacity.get() || capacity.get() < maxCapacity;
+        hasItem = () -> out.get() < in.get();
+    }
+
+    /**
+     * The interface used by producers. Grows the capacity rather than waiting, until the maximum capacity is reached.
+     * @param item the item to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for space.
+     * @throws NullPointerException if `item` is null.
+     */
+    public void put(T item) throws InterruptedException {
+        while (!tryPut(item)) {
+            waitStrategy.await(hasSpace);
+        }
+    }
+
+    /**
+     * The interface used by consumers.
+     * @return the object received from the buffer.
+     * @throws InterruptedException if the thread is interrupted while waiting for an item.
+     */
+    public T get() throws InterruptedException {
+        T item;
+        while ((item = tryGet()) == null) {
+            waitStrategy.await(hasItem);
+        }
+        return item;
+    }
+
+    /**
+     * Puts `item` in the pipeline if there is space, growing the capacity if needed. Never waits.
+     * @param item the item to put in the pipeline.
+     * @return true if the item was put, false if the buffer was full at the maximum capacity.
+     * @throws NullPointerException if `item` is null.
+     */
+    public boolean tryPut(T item) {
+        if (item == null) {
+            throw new NullPointerException("ElasticPipe does not accept null items.");
+        }
+        if (!reserve()) {
+            return false;
+        }
+        long pos = in.getAndIncrement();
+        Segment segment = find(pos / segmentSize);
+        segment.slots.lazySet((int) (pos % segmentSize), item);
+        waitStrategy.signal();
+        return true;
+    }
+
+    /**
+     * Receives an item only if one is available right now. Never waits, except for a producer that has claimed the next position to finish writing it.
+     * @return the object received from the buffer, or null if the buffer was empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T tryGet() {
+        long pos;
+        do {
+            pos = out.get();
+            if (pos >= in.get()) {
+                return null;
+            }
+        } while (!out.compareAndSet(pos, pos + 1));
+        Segment segment = find(pos / segmentSize);
+        int index = (int) (pos % segmentSize);
+        Object item;
+        for (int spins = 0; (item = segment.slots.get(index)) == null; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        segment.slots.lazySet(index, null);
+        size.decrementAndGet();
+        if (segment.got.incrementAndGet() == segmentSize) {
+            retire();
+        }
+        waitStrategy.signal();
+        return (T) item;
+    }
+
+    /**
+     * Returns the number of items in the buffer. Only a snapshot.
+     * @return the number of items in the buffer.
+     */
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    /**
+     * Returns the current capacity, between the minimum and maximum capacity.
+     * @return the current capacity.
+     */
+    public int capacity() {
+        return capacity.get();
+    }
+
+    public int minCapacity() { return minCapacity; }
+    public int maxCapacity() { return maxCapacity; }
+    /** Number of times the capacity was doubled. */
+    public long grows() { return grows.get(); }
+    /** Number of times the capacity was halved. */
+    public long shrinks() { return shrinks.get(); }
+    /** Number of segment slot arrays ever allocated. Stops growing once the free list covers the flow of items. */
+    public long segmentsAllocated() { return allocated.get(); }
+
+    /**
+     * Returns the number of segments currently reachable, i.e. the memory held by the buffer in units of `segmentSize` slots.
+     * @return the number of live segments.
+     */
+    public long segments() {
+        return Math.max(tail.get().id, head.get().id) - head.get().id + 1;
+    }
+
+    /**
+     * Takes one unit of capacity, doubling the capacity first if the buffer is full and below the maximum.
+     * @return true if space was reserved, false if the buffer is full at the maximum capacity.
+     */
+    private boolean reserve() {
+        while (true) {
+            int s = size.get();
+            int cap = capacity.get();
+            if (s < cap) {
+                if (size.compareAndSet(s, s + 1)) {
+                    return true;
+                }
+            } else if (cap < maxCapacity) {
+                if (capacity.compareAndSet(cap, (int) Math.min(maxCapacity, 2L * cap))) {
+                    grows.incrementAndGet();
+                    lowSamples.set(0);
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Called each time a segment has been fully got: unlinks fully got segments from the head, freeing their slot arrays, and samples occupancy to decide whether to shrink.
+     * Every put and get of a fully got segment has finished with its slots, so only threads walking the list may still hold the segment, and they never touch its slots.
+     */
+    private void retire() {
+        Segment h;
+        while ((h = head.get()).got.get() == segmentSize) {
+            if (head.compareAndSet(h, find(h.id + 1))) {
+                free(h.slots);
+            }
+        }
+        int cap = capacity.get();
+        if (cap > minCapacity && size.get() < cap / 4) {
+            // Low for at least SHRINK_AFTER segments, and at least a whole capacity's worth of gets.
+            if (lowSamples.incrementAndGet() >= Math.max(SHRINK_AFTER, cap / segmentSize)) {
+                lowSamples.set(0);
+                if (capacity.compareAndSet(cap, Math.max(minCapacity, cap / 2))) {
+                    shrinks.incrementAndGet();
+                }
+            }
+        } else {
+            lowSamples.set(0);
+        }
+    }
+
+    /**
+     * Returns the segment with id `id`, walking forward from the tail (or from the head, if the tail is already past `id`) and linking new segments as needed. Moves the tail forward to the segment found.
+     * The head is never past a segment whose positions are not all got, so it is never past `id`. Every segment from a given one onward stays linked, so walking from an out of date tail still finds the segment.
+     * @param id the id of the segment of a claimed position.
+     * @return the segment with id `id`.
+     */
+    private Segment find(long id) {
+        Segment from = tail.get();
+        Segment segment = from.id <= id ? from : head.get();
+        while (segment.id < id) {
+            Segment next = segment.next.get();
+            if (next == null) {
+                Segment created = newSegment(segment.id + 1);
+                if (!segment.next.compareAndSet(null, created)) {
+                    // Another thread linked the segment first.
+                    free(created.slots);
+                }
+                next = segment.next.get();
+            }
+            segment = next;
+        }
+        while (from.id < segment.id && !tail.compareAndSet(from, segment)) {
+            from = tail.get();
+        }
+        return segment;
+    }
+
+    /**
+     * Returns a new segment, with a slot array from the free list if there is one.
+     * @param id the id of the segment.
+     * @return the new segment, not yet linked.
+     */
+    private Segment newSegment(long id) {
+        for (int i = 0; i < FREE_SEGMENTS; i++) {
+            AtomicReferenceArray<Object> slots = free.get(i);
+            if (slots != null && free.compareAndSet(i, slots, null)) {
+                return new Segment(id, slots);
+            }
+        }
+        allocated.incrementAndGet();
+        return new Segment(id, new AtomicReferenceArray<>(segmentSize));
+    }
+
+    /**
+     * Puts a slot array whose slots are all null on the free list, or leaves it to the garbage collector if the list is full.
+     * @param slots the slot array of a segment no thread will put to or get from again.
+     */
+    private void free(AtomicReferenceArray<Object> slots) {
+        for (int i = 0; i < FREE_SEGMENTS; i++) {
+            if (free.get(i) == null && free.compareAndSet(i, null, slots)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * `segmentSize` slots holding the items of positions `id * segmentSize` to `(id + 1) * segmentSize - 1`.
+     */
+    private final class Segment {
+        final long id;
+        final AtomicReferenceArray<Object> slots;
+        final AtomicReference<Segment> next = new AtomicReference<>();
+        final AtomicInteger got = new AtomicInteger(); // Slots that have been got.
+
+        Segment(long id, AtomicReferenceArray<Object> slots) {
+            this.id = id;
+            this.slots = slots;
+        }
+    }
+}
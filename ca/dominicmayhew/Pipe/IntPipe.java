@@ -0,0 +1,144 @@
+package ca.dominicmayhew.Pipe;
+
+/**
+ * A `Pipe` specialized for `int` items. The buffer is an `int[]`, so no item is ever boxed.
+ * Offers the same `Pipe.AccessMode` and `WaitStrategy` choices as `Pipe`.
+ */
+public class IntPipe extends AbstractPipe {
+    private final int buf[];
+
+    /**
+     * Instantiates the memory buffer with the default `WaitStrategy` for `mode`, for an unknown number of producers and consumers.
+     * @param bufSize size of the buffer.
+     * @param mode type of synchronization method to use.
+     */
+    public IntPipe(int bufSize, Pipe.AccessMode mode) {
+        this(bufSize, mode, 0, 0, null);
+    }
+
+    /**
+     * Instantiates the memory buffer. See `Pipe` for a description of each parameter.
+     * @param bufSize size of the buffer.
+     * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will put, or 0 if unknown.
+     * @param numReceivers number of threads that will get, or 0 if unknown.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for the default of `mode`.
+     */
+    public IntPipe(int bufSize, Pipe.AccessMode mode, int numCreators, int numReceivers, WaitStrategy waitStrategy) {
+        this(bufSize, mode, numCreators, numReceivers, waitStrategy, null);
+    }
+
+    /**
+     * Instantiates the memory buffer, publishing live metrics through JMX and JFR (see `PipeMetrics`).
+     * @param bufSize size of the buffer.
+     * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will put, or 0 if unknown.
+     * @param numReceivers number of threads that will get, or 0 if unknown.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for the default of `mode`.
+     * @param metrics the metrics to publish, or null for none.
+     */
+    public IntPipe(int bufSize, Pipe.AccessMode mode, int numCreators, int numReceivers, WaitStrategy waitStrategy, PipeMetrics metrics) {
+        super(bufSize, mode, numCreators, numReceivers, waitStrategy, metrics);
+        buf = new int[BUF_SIZE];
+    }
+
+    /**
+     * The interface used by producers.
+     * @param item the item to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public void putInt(int item) throws InterruptedException {
+        long pos = claimPut();
+        buf[index(pos)] = item;
+        publishPut(pos);
+    }
+
+    /**
+     * The interface used by consumers.
+     * @return the item received from the buffer.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public int getInt() throws InterruptedException {
+        long pos = claimGet();
+        int result = buf[index(pos)];
+        releaseGet(pos);
+        return result;
+    }
+
+    /**
+     * Puts `item` in the pipeline only if there is space right now. Never waits. See `Pipe.tryPut()`; for a non-blocking get, use `drainTo()`.
+     * @param item the item to put in the pipeline.
+     * @return true if the item was put, false if the buffer was full.
+     */
+    public boolean tryPutInt(int item) {
+        long pos = tryClaim(true);
+        if (pos < 0) {
+            return false;
+        }
+        buf[index(pos)] = item;
+        publishPut(pos);
+        return true;
+    }
+
+    /**
+     * Puts every item of the array in the pipeline, in order. See `Pipe.putAll()`.
+     * @param items the items to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for access. Some of the items may already have been put.
+     */
+    public void putAll(int[] items) throws InterruptedException {
+        putAll(items, 0, items.length);
+    }
+
+    /**
+     * Puts `items[off]` to `items[off + len - 1]` in the pipeline, in order. See `Pipe.putAll()`.
+     * @param items the items to put in the pipeline.
+     * @param off the first index of `items` to put.
+     * @param len the number of items to put.
+     * @throws IndexOutOfBoundsException if the range is not within `items`. Nothing is put.
+     * @throws InterruptedException if the thread is interrupted while waiting for access. Some of the items may already have been put.
+     */
+    public void putAll(int[] items, int off, int len) throws InterruptedException {
+        putArray(items, off, len);
+    }
+
+    /**
+     * Moves every item currently available, up to `max`, into `dst` starting at `dst[off]`. Never waits.
+     * @param dst the array to receive into.
+     * @param off the first index of `dst` to receive into.
+     * @param max the maximum number of items to receive.
+     * @return the number of items received, possibly 0.
+     * @throws IndexOutOfBoundsException if `dst` has fewer than `max` elements from `off`. Nothing is received.
+     */
+    public int drainTo(int[] dst, int off, int max) {
+        return drainArray(dst, off, max);
+    }
+
+    /**
+     * The batch interface used by consumers. Waits until at least one item is available, then receives every available item up to `max` into `dst` starting at `dst[off]`.
+     * @param dst the array to receive into.
+     * @param off the first index of `dst` to receive into.
+     * @param max the maximum number of items to receive.
+     * @return the number of items received, at least 1 if `max` is positive.
+     * @throws IndexOutOfBoundsException if `dst` has fewer than `max` elements from `off`. Nothing is received.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public int getInts(int[] dst, int off, int max) throws InterruptedException {
+        return getArray(dst, off, max);
+    }
+
+    @Override
+    protected void storeRange(long pos, int k, Object src, int off) {
+        int[] items = (int[]) src;
+        for (int i = 0; i < k; i++) {
+            buf[index(pos + i)] = items[off + i];
+        }
+    }
+
+    @Override
+    protected void loadRange(long pos, int k, Object dst, int off) {
+        int[] items = (int[]) dst;
+        for (int i = 0; i < k; i++) {
+            items[off + i] = buf[index(pos + i)];
+        }
+    }
+}
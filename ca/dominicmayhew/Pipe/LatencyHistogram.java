@@ -0,0 +1,107 @@
+package ca.dominicmayhew.Pipe;
+
+/**
+ * A fixed-size histogram of durations in nanoseconds, with log-spaced buckets.
+ * Each power of two is split into 32 linear sub-buckets, so a reported percentile is within about 3% of the true value, from 1ns up to `Long.MAX_VALUE`, in 15KB.
+ * Not thread safe: each thread records into its own histogram, without any synchronization, and the histograms are merged with `add()` once the threads are done.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1); // Sub-buckets per power of two.
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF;
+
+    private final long counts[] = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Records one duration. Negative durations are recorded as 0.
+     * @param nanos the duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts[index(nanos)]++;
+        count++;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Adds every duration recorded by another histogram to this one.
+     * @param other the histogram to merge into this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     * @return the number of durations recorded.
+     */
+    public long count() { return count; }
+
+    /**
+     * Returns the exact mean of the recorded durations.
+     * @return the mean in nanoseconds, or NaN if nothing was recorded.
+     */
+    public double mean() { return (double) sum / count; }
+
+    /**
+     * Returns the exact longest recorded duration.
+     * @return the maximum in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long max() { return max; }
+
+    /**
+     * Returns the duration that `percentile` percent of the recorded durations are less than or equal to, rounded up to the end of its bucket.
+     * @param percentile the percentile, from 0 to 100, e.g. 99.9.
+     * @return the percentile in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Values below `2 * HALF` have a bucket each. Above that, the bucket is given by the position of the highest bit and the `SUB_BITS` bits from there down.
+     * @param nanos a non-negative duration.
+     * @return the bucket holding `nanos`.
+     */
+    private static int index(long nanos) {
+        if (nanos < 2 * HALF) {
+            return (int) nanos;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        return shift * HALF + (int) (nanos >>> shift);
+    }
+
+    /**
+     * Inverse of `index()`.
+     * @param index a bucket.
+     * @return the largest duration in the bucket.
+     */
+    private static long highest(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long sub = index - shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
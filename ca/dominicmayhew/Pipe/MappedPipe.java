@@ -0,0 +1,222 @@
+package ca.dominicmayhew.Pipe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A pipeline whose buffer lives in a memory-mapped file, so that producers and consumers in different processes can share it.
+ * Uses the same slot protocol as `Pipe.AccessMode.lockFree`: slots are claimed by CAS on the head/tail sequence and published through per-slot sequence numbers, all stored in the file.
+ * Items are fixed-size binary records written and read in place by a `SlotCodec`.
+ *
+ * File layout (native byte order):
+ * header: magic, capacity, slot size, then the tail and head sequences on their own cache lines;
+ * slots: an 8 byte sequence number followed by the record, padded to a multiple of 8 bytes.
+ *
+ * A slot is always published (freed) once claimed, even if the codec throws, since every process mapping the file would otherwise wait on it, across restarts.
+ * A producer whose `encode()` throws publishes its slot as skipped, with the bitwise complement of its sequence number, and consumers pass over it. A consumer whose `decode()` throws frees its slot, and the item is lost.
+ */
+public class MappedPipe<T> implements Closeable {
+    private static final long MAGIC = 0x50495045_4d415031L; // "PIPEMAP1"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+    private static final int TAIL_OFFSET = 64;
+    private static final int HEAD_OFFSET = 128;
+    private static final int SLOTS_OFFSET = 192;
+
+    // Atomic access to aligned longs of the mapped buffer.
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buf;
+    private final SlotCodec<T> codec;
+    private final WaitStrategy waitStrategy;
+    private final int BUF_SIZE;
+    private final int mask;
+    private final int stride; // Bytes per slot, including the sequence number.
+
+    private final BooleanSupplier hasSpace = () -> {
+        long pos = tail();
+        return sequence(pos) - pos >= 0;
+    };
+    private final BooleanSupplier hasItem = () -> {
+        long pos = head();
+        return sequence(pos) - (pos + 1) >= 0;
+    };
+
+    /**
+     * Maps `file`, creating and initializing it if it does not yet hold a pipe. Every process attaching to the same file must use the same `bufSize` and codec size.
+     * @param file the file shared by all processes using the pipe.
+     * @param bufSize number of slots. Rounded up to a power of two.
+     * @param codec writes and reads the records.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for spin then park. Must not be `WaitStrategy.blocking()`, which is only signalled within one process, nor `WaitStrategy.adaptive()`, which may switch to blocking.
+     * @throws IOException if the file cannot be mapped, or already holds a pipe with a different layout.
+     */
+    public MappedPipe(Path file, int bufSize, SlotCodec<T> codec, WaitStrategy waitStrategy) throws IOException {
+        if (bufSize < 1 || bufSize > (1 << 24)) {
+            throw new IllegalArgumentException("Buffer size must be between 1 and 2^24: " + bufSize);
+        }
+        if (waitStrategy instanceof WaitStrategy.Blocking) {
+            throw new IllegalArgumentException("A blocking wait strategy is never signalled across processes.");
+        }
+        if (waitStrategy instanceof AdaptiveWaitStrategy) {
+            throw new IllegalArgumentException("An adaptive wait strategy may block, and is never signalled across processes.");
+        }
+        BUF_SIZE = bufSize == 1 ? 1 : Integer.highestOneBit(bufSize - 1) << 1;
+        mask = BUF_SIZE - 1;
+        stride = 8 + ((codec.size() + 7) & ~7);
+        this.codec = codec;
+        this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.spinThenPark(100, 1_000_000);
+
+        long length = SLOTS_OFFSET + (long) BUF_SIZE * stride;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Pipe does not fit in one mapping: " + length + " bytes.");
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.lock();
+            try {
+                // Check the layout of an existing pipe before mapping, which would extend a smaller file.
+                ByteBuffer header = ByteBuffer.allocate(SLOT_SIZE_OFFSET + 4).order(ByteOrder.nativeOrder());
+                channel.read(header, 0);
+                boolean exists = header.position() == header.capacity() && header.getLong(MAGIC_OFFSET) == MAGIC;
+                if (exists && (header.getInt(CAPACITY_OFFSET) != BUF_SIZE || header.getInt(SLOT_SIZE_OFFSET) != stride)) {
+                    throw new IOException("File holds a pipe with a different layout: capacity " + header.getInt(CAPACITY_OFFSET) + ", slot size " + header.getInt(SLOT_SIZE_OFFSET));
+                }
+                buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                buf.order(ByteOrder.nativeOrder());
+                if (!exists) {
+                    // Initialize a new pipe, publishing the magic number last.
+                    buf.putInt(CAPACITY_OFFSET, BUF_SIZE);
+                    buf.putInt(SLOT_SIZE_OFFSET, stride);
+                    LONGS.setVolatile(buf, TAIL_OFFSET, 0L);
+                    LONGS.setVolatile(buf, HEAD_OFFSET, 0L);
+                    for (int i = 0; i < BUF_SIZE; i++) {
+                        LONGS.setVolatile(buf, slotOffset(i), (long) i);
+                    }
+                    LONGS.setVolatile(buf, MAGIC_OFFSET, MAGIC);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The interface used by producers. Encodes `item` directly into the shared slot.
+     * @param item the item to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for space.
+     * @throws RuntimeException if the codec throws. The slot is then skipped, and the item is not put.
+     */
+    public void put(T item) throws InterruptedException {
+        long pos = tail();
+        // Claim a slot.
+        while (true) {
+            long diff = sequence(pos) - pos;
+            if (diff == 0) {
+                if (LONGS.compareAndSet(buf, TAIL_OFFSET, pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // Buffer is full, wait until a receiver frees the slot.
+                waitStrategy.await(hasSpace);
+            }
+            pos = tail();
+        }
+        // Write the record and publish the slot, as skipped if the record could not be written.
+        int offset = slotOffset((int) pos & mask);
+        boolean encoded = false;
+        try {
+            codec.encode(item, buf, offset + 8);
+            encoded = true;
+        } finally {
+            LONGS.setRelease(buf, offset, encoded ? pos + 1 : ~(pos + 1));
+        }
+    }
+
+    /**
+     * The interface used by consumers. Decodes the item directly from the shared slot.
+     * @return the item received from the buffer.
+     * @throws InterruptedException if the thread is interrupted while waiting for an item.
+     * @throws RuntimeException if the codec throws. The slot is then freed, and the item is lost.
+     */
+    public T get() throws InterruptedException {
+        while (true) {
+            long pos = head();
+            // Claim a slot.
+            while (true) {
+                long diff = sequence(pos) - (pos + 1);
+                if (diff == 0) {
+                    if (LONGS.compareAndSet(buf, HEAD_OFFSET, pos, pos + 1)) {
+                        break;
+                    }
+                } else if (diff < 0) {
+                    // Buffer is empty, wait until a creator fills the slot.
+                    waitStrategy.await(hasItem);
+                }
+                pos = head();
+            }
+            // Read the record, unless its producer skipped the slot, and free the slot.
+            int offset = slotOffset((int) pos & mask);
+            boolean skipped = (long) LONGS.getAcquire(buf, offset) < 0;
+            try {
+                if (!skipped) {
+                    return codec.decode(buf, offset + 8);
+                }
+            } finally {
+                LONGS.setRelease(buf, offset, pos + BUF_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Returns the capacity of the buffer.
+     * @return the capacity of the buffer.
+     */
+    public int capacity() {
+        return BUF_SIZE;
+    }
+
+    /**
+     * Closes the file. The mapping itself is released when this object is garbage collected; the pipe must not be used after closing.
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        buf.force();
+        channel.close();
+    }
+
+    private long tail() {
+        return (long) LONGS.getVolatile(buf, TAIL_OFFSET);
+    }
+
+    private long head() {
+        return (long) LONGS.getVolatile(buf, HEAD_OFFSET);
+    }
+
+    /**
+     * Returns the sequence number of the slot of `pos`, whether or not its producer skipped it.
+     */
+    private long sequence(long pos) {
+        long sequence = (long) LONGS.getAcquire(buf, slotOffset((int) pos & mask));
+        return sequence < 0 ? ~sequence : sequence;
+    }
+
+    private int slotOffset(int index) {
+        return SLOTS_OFFSET + index * stride;
+    }
+}
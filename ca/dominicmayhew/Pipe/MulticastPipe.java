@@ -0,0 +1,281 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A pipeline in which every item is delivered to every consumer group, e.g. persistence, metrics and alerting, from one shared ring instead of a copy per group.
+ * Each `Group` has its own read cursor over the ring. Within a group, consumers compete as they do on a `Pipe`: each item goes to one consumer of each group.
+ * A slot is reused only once the slowest group has read it, so the slowest group holds back producers; `lag()` tells which group that is. A group that stops consuming should be `remove()`d.
+ *
+ * Positions are claimed as in `Pipe.AccessMode.lockFree`: producers CAS the tail and publish each slot by writing its position to it, so items from several producers are never torn.
+ * The group that reads an item last clears its slot, so the ring does not keep items alive once every group has read them. Only when two groups read an item at the same moment may neither see the other done; that item then stays referenced until its slot is reused.
+ */
+public class MulticastPipe<T> {
+    private final int BUF_SIZE;
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray published; // Position of the item in each slot, or -1 before the first.
+    private final AtomicLong tail = new AtomicLong(); // Next position to put.
+    private final List<Group> groups = new CopyOnWriteArrayList<>();
+    private volatile long gatingCache = 0; // Lowest group position seen last time, so producers only scan the groups when the ring looks full.
+    private final WaitStrategy waitStrategy;
+    private final BooleanSupplier hasSpace;
+
+    /**
+     * Instantiates the pipe with a blocking `WaitStrategy`.
+     * @param bufSize size of the ring. Rounded up to a power of two.
+     * @param groups names of the initial consumer groups.
+     */
+    public MulticastPipe(int bufSize, String... groups) {
+        this(bufSize, null, groups);
+    }
+
+    /**
+     * Instantiates the pipe.
+     * @param bufSize size of the ring. Rounded up to a power of two.
+     * @param waitStrategy how producers wait while the ring is full and consumers wait while their group has read every item, or null for `WaitStrategy.blocking()`.
+     * @param groups names of the initial consumer groups.
+     * @throws IllegalArgumentException if `bufSize` is less than 1, or there is no group.
+     */
+    public MulticastPipe(int bufSize, WaitStrategy waitStrategy, String... groups) {
+        if (bufSize < 1 || bufSize > (1 << 30)) {
+            throw new IllegalArgumentException("Buffer size must be between 1 and 2^30: " + bufSize);
+        }
+        if (groups.length == 0) {
+            throw new IllegalArgumentException("A multicast pipe needs at least one consumer group.");
+        }
+        BUF_SIZE = bufSize == 1 ? 1 : Integer.highestOneBit(bufSize - 1) << 1;
+        mask = BUF_SIZE - 1;
+        slots = new AtomicReferenceArray<>(BUF_SIZE);
+        published = new AtomicLongArray(BUF_SIZE);
+        for (int i = 0; i < BUF_SIZE; i++) {
+            published.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.blocking();
+        hasSpace = () -> tail.get() - BUF_SIZE < minReleased();
+        for (String name : groups) {
+            addGroup(name);
+        }
+    }
+
+    /**
+     * Adds a consumer group that sees every item put from now on.
+     * @param name the name of the group, used in `lags()`.
+     * @return the new group.
+     * @throws IllegalArgumentException if a group with that name exists.
+     */
+    public synchronized Group addGroup(String name) {
+        if (group(name) != null) {
+            throw new IllegalArgumentException("Group already exists: " + name);
+        }
+        Group group = new Group(name, tail.get());
+        groups.add(group);
+        return group;
+    }
+
+    /**
+     * Returns the group named `name`.
+     * @param name the name of the group.
+     * @return the group, or null if there is none with that name.
+     */
+    public Group group(String name) {
+        for (Group group : groups) {
+            if (group.name.equals(name)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The interface used by producers. Waits while the slowest group has not read the item `bufSize` positions back.
+     * @param item the item to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for space.
+     */
+    public void put(T item) throws InterruptedException {
+        while (!tryPut(item)) {
+            waitStrategy.await(hasSpace);
+        }
+    }
+
+    /**
+     * Puts `item` in the pipeline only if there is space right now. Never waits.
+     * @param item the item to put in the pipeline.
+     * @return true if the item was put, false if the ring was full.
+     */
+    public boolean tryPut(T item) {
+        long pos;
+        do {
+            pos = tail.get();
+            if (pos - BUF_SIZE >= gatingCache) {
+                long min = minReleased();
+                gatingCache = min;
+                if (pos - BUF_SIZE >= min) {
+                    return false;
+                }
+            }
+        } while (!tail.compareAndSet(pos, pos + 1));
+        int index = (int) pos & mask;
+        slots.lazySet(index, item);
+        published.set(index, pos);
+        waitStrategy.signal();
+        return true;
+    }
+
+    /**
+     * Returns the capacity of the ring.
+     * @return the capacity of the ring.
+     */
+    public int capacity() {
+        return BUF_SIZE;
+    }
+
+    /**
+     * Returns the lag of every group, in the order they were added.
+     * @return the number of items each group has not yet read, by group name.
+     */
+    public Map<String, Long> lags() {
+        Map<String, Long> lags = new LinkedHashMap<>();
+        for (Group group : groups) {
+            lags.put(group.name, group.lag());
+        }
+        return lags;
+    }
+
+    /**
+     * Returns the lowest position not yet read by every group, i.e. the oldest slot that may not be reused.
+     */
+    private long minReleased() {
+        long min = tail.get();
+        for (Group group : groups) {
+            min = Math.min(min, group.released.get());
+        }
+        return min;
+    }
+
+    /**
+     * A consumer group: a read cursor over the ring, shared by the group's consumers.
+     * A consumer claims a position by CAS on `claimed`, reads it, then moves `released` past it in position order, which is what frees the slot for producers.
+     */
+    public final class Group {
+        private final String name;
+        private final long start;
+        private final AtomicLong claimed; // Next position to claim.
+        private final AtomicLong released; // Every position before this has been read.
+        private final AtomicLong maxLag = new AtomicLong();
+        private volatile boolean removed = false;
+        private final BooleanSupplier hasItem;
+
+        private Group(String name, long start) {
+            this.name = name;
+            this.start = start;
+            claimed = new AtomicLong(start);
+            released = new AtomicLong(start);
+            hasItem = () -> {
+                long pos = claimed.get();
+                return published.get((int) pos & mask) == pos || removed;
+            };
+        }
+
+        /**
+         * The interface used by the group's consumers.
+         * @return the next item this group has not read.
+         * @throws InterruptedException if the thread is interrupted while waiting for an item.
+         * @throws IllegalStateException if the group was removed.
+         */
+        public T get() throws InterruptedException {
+            T item;
+            while ((item = tryGet()) == null) {
+                if (removed) {
+                    throw new IllegalStateException("Group was removed: " + name);
+                }
+                waitStrategy.await(hasItem);
+            }
+            return item;
+        }
+
+        /**
+         * Receives the next item this group has not read, only if it is available right now. Never waits, except for consumers of the group that claimed earlier positions to finish reading them.
+         * @return the item, or null if the group has read every item put so far.
+         */
+        public T tryGet() {
+            long pos;
+            do {
+                pos = claimed.get();
+                if (removed || published.get((int) pos & mask) != pos) {
+                    return null;
+                }
+            } while (!claimed.compareAndSet(pos, pos + 1));
+            int index = (int) pos & mask;
+            T item = slots.get(index);
+            // Release in order: earlier positions may still be being read by other consumers of the group.
+            for (int spins = 0; released.get() != pos; spins++) {
+                if (spins < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+            if (othersReleased(pos)) {
+                // Every other group has read the item. This group has not released it yet, so no producer can reuse the slot before it is cleared.
+                slots.lazySet(index, null);
+            }
+            released.set(pos + 1);
+            long lag = tail.get() - pos - 1;
+            if (lag > maxLag.get()) {
+                maxLag.set(lag);
+            }
+            waitStrategy.signal();
+            return item;
+        }
+
+        /**
+         * Returns whether every other group has read the item at `pos`, i.e. this group is the last to read it.
+         */
+        private boolean othersReleased(long pos) {
+            for (Group group : groups) {
+                if (group != this && group.released.get() <= pos) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Stops the group, so that it no longer holds back producers. Its consumers' `get()` throws `IllegalStateException`.
+         */
+        public void remove() {
+            removed = true;
+            groups.remove(this);
+            waitStrategy.signal();
+        }
+
+        public String name() { return name; }
+
+        /**
+         * Returns the number of items put that this group has not yet read. Only a snapshot.
+         * @return the lag of the group.
+         */
+        public long lag() {
+            return Math.max(0, tail.get() - released.get());
+        }
+
+        /**
+         * Returns the highest lag seen by this group's consumers after a read. Close to the capacity, the group is the one holding back producers.
+         * @return the highest lag of the group.
+         */
+        public long maxLag() {
+            return maxLag.get();
+        }
+
+        /** Number of items this group has read. */
+        public long delivered() { return released.get() - start; }
+    }
+}
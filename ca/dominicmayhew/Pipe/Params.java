@@ -0,0 +1,82 @@
+package ca.dominicmayhew.Pipe;
+
+/**
+ * Stores parameters used by PipeTest. Each test run takes its own instance, so that many variations can be run (see `SweepRunner`).
+ */
+class Params {
+    protected int numCreators = 10;
+    protected int numReceivers = 10; // The minimum number of Receivers, if MAX_RECEIVERS is set.
+    protected int MAX_RECEIVERS = 0; // If more than numReceivers, Receivers run in a `ConsumerPool` that scales between the two with the backlog.
+    protected int COOLDOWN = 500; // Shortest time between two changes of the number of Receivers, in ms.
+    protected int BUF_SIZE = 20;
+    protected Pipe.AccessMode MODE = Pipe.AccessMode.semaphore; // Synchronization method used by the pipe.
+    protected String WAIT_STRATEGY = "default"; // How the pipe waits while full/empty, see `WaitStrategy.forName()`. "default" uses the default for MODE.
+    protected boolean METRICS = false; // Publish metrics of the pipe through JMX and JFR while the test runs, see `PipeMetrics`.
+    protected boolean RECYCLE = false; // Return received Records to their Creator for reuse, so the steady state allocates no Records.
+    protected boolean VIRTUAL_THREADS = false; // Run each Worker on its own virtual thread. Scales to 10k+ Workers; requires Java 21.
+    protected int WORK_INTERVAL = 20; // Mean processing delay of Workers, in ms.
+    protected int SERVICE_MICROS = 0; // Mean processing delay in microseconds, for delays under 1 ms. 0 uses WORK_INTERVAL.
+    protected String SERVICE = "uniform"; // Distribution of processing delays, see `ServiceTime.forName()`.
+    protected String WORK = "spin"; // How Workers simulate processing: "spin" burns the CPU, "park" uses none.
+    protected double RATE = 0; // Records per second offered by all Creators together, on a fixed schedule. 0 for closed loop: each Creator puts as fast as the pipe lets it.
+    protected int TIME_OUT = 10000; // How long to run the test.
+
+    /**
+     * Sets a parameter from its name and a string value, as given to `SweepRunner`.
+     * @param key one of `creators`, `receivers`, `bufSize`, `mode`, `wait`, `metrics`, `recycle`, `virtual`, `maxReceivers`, `cooldown`, `workInterval`, `serviceMicros`, `service`, `work`, `rate` or `timeOut`.
+     * @param value the value of the parameter.
+     * @throws IllegalArgumentException if `key` is not a parameter or `value` cannot be parsed.
+     */
+    protected void set(String key, String value) {
+        switch (key) {
+            case "creators": numCreators = Integer.parseInt(value); break;
+            case "receivers": numReceivers = Integer.parseInt(value); break;
+            case "bufSize": BUF_SIZE = Integer.parseInt(value); break;
+            case "mode": MODE = Pipe.AccessMode.valueOf(value); break;
+            case "wait": WaitStrategy.forName(value); WAIT_STRATEGY = value; break;
+            case "metrics": METRICS = Boolean.parseBoolean(value); break;
+            case "recycle": RECYCLE = Boolean.parseBoolean(value); break;
+            case "virtual": VIRTUAL_THREADS = Boolean.parseBoolean(value); break;
+            case "maxReceivers": MAX_RECEIVERS = Integer.parseInt(value); break;
+            case "cooldown": COOLDOWN = Integer.parseInt(value); break;
+            case "workInterval": WORK_INTERVAL = Integer.parseInt(value); break;
+            case "serviceMicros": SERVICE_MICROS = Integer.parseInt(value); break;
+            case "service": ServiceTime.forName(value, 1); SERVICE = value; break;
+            case "work":
+                if (!value.equals("spin") && !value.equals("park")) {
+                    throw new IllegalArgumentException("Unknown work mode: " + value);
+                }
+                WORK = value;
+                break;
+            case "rate": RATE = Double.parseDouble(value); break;
+            case "timeOut": TIME_OUT = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown parameter: " + key);
+        }
+    }
+
+    /**
+     * Returns the distribution of processing delays of Workers, with a mean of SERVICE_MICROS, or WORK_INTERVAL if it is not set.
+     * @return the distribution of processing delays, in nanoseconds.
+     */
+    protected ServiceTime getServiceTime() {
+        long mean = SERVICE_MICROS > 0 ? SERVICE_MICROS * 1000L : WORK_INTERVAL * 1_000_000L;
+        return ServiceTime.forName(SERVICE, mean);
+    }
+
+    /**
+     * Returns a new `WaitStrategy` for the pipe of one run.
+     * Virtual threads must not spin while the buffer is full/empty, since spinning pins the carrier thread, so they block unless another strategy was set.
+     * An adaptive strategy prints each of its switches.
+     * @return the `WaitStrategy` for the pipe, or null for the default of MODE.
+     */
+    protected WaitStrategy getWaitStrategy() {
+        if (WAIT_STRATEGY.equals("default") && VIRTUAL_THREADS) {
+            return WaitStrategy.blocking();
+        }
+        if (WAIT_STRATEGY.equals("adaptive")) {
+            // Log every switch as it happens.
+            return WaitStrategy.adaptive(s -> System.out.println(s));
+        }
+        return WaitStrategy.forName(WAIT_STRATEGY);
+    }
+}
@@ -1,58 +1,70 @@
 package ca.dominicmayhew.Pipe;
 
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A shared memory pipeline whose interface is the `put()` and `get()` methods.
  * The size of the buffer and the synchronization method can be set at instantiation.
- * 
+ * The synchronization logic lives in `AbstractPipe`, which is shared with the primitive pipes `IntPipe`, `LongPipe` and `DoublePipe`.
+ *
  * @author Dominic Mayhew                      T00688238
  * @version February 18, 2022 // COMP 3411, Assignment 5
  */
-public class Pipe<T> {
+public class Pipe<T> extends AbstractPipe {
     T buf[];
 
-    private Semaphore creatorAccess;
-    private Semaphore receiverAccess;
-
-    // Set during instantiation, provides functional interface for `put()`.
-    private Putter<T> putter;
-    // Set during instantiation, provides functional interface for `get()`.
-    private Getter<T> getter;
+    /**
+     * Instantiates the memory buffer and sets `put()` and `get()` methods according to the mode `Pipe.AccessMode` provided.
+     * Equivalent to `Pipe(bufSize, mode, 0, 0)`, i.e. the number of producers and consumers is unknown.
+     * @param bufSize size of the buffer.
+     * @param mode type of synchronization method to use.
+     */
+    public Pipe(int bufSize, AccessMode mode) {
+        this(bufSize, mode, 0, 0);
+    }
 
-    private AtomicInteger in;
-    private AtomicInteger out;
-    private AtomicInteger count;
-    private int BUF_SIZE;
+    /**
+     * Instantiates the memory buffer and sets `put()` and `get()` methods according to the mode `Pipe.AccessMode` provided, with the default `WaitStrategy` for that mode.
+     * @param bufSize size of the buffer.
+     * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will call `put()`, or 0 if unknown.
+     * @param numReceivers number of threads that will call `get()`, or 0 if unknown.
+     */
+    public Pipe(int bufSize, AccessMode mode, int numCreators, int numReceivers) {
+        this(bufSize, mode, numCreators, numReceivers, null);
+    }
 
     /**
      * Instantiates the memory buffer and sets `put()` and `get()` methods according to the mode `Pipe.AccessMode` provided.
-     * `Pipe.AccessMode.mutex` uses two binary semaphores for distinct producer and consumer mutex locks, but allows up to one producer or one consumer to busy wait if the buffer is full/empty.
-     * `Pipe.AccessMode.semaphore` uses two counting semaphores to hold distinct access permits for producers and consumers and involves no busy waiting.
+     * `Pipe.AccessMode.mutex` uses two binary semaphores for distinct producer and consumer mutex locks, and allows up to one producer or one consumer to wait if the buffer is full/empty. Waits by busy spinning by default.
+     * `Pipe.AccessMode.semaphore` uses two counting semaphores to hold distinct access permits for producers and consumers. Waits by blocking by default.
+     * `Pipe.AccessMode.lockFree` claims slots with CAS on per-slot sequence numbers. Waits by busy spinning by default. The buffer size is rounded up to a power of two.
+     * If exactly one producer and one consumer are expected, `Pipe.AccessMode.lockFree` uses a single-producer/single-consumer path with no CAS at all.
      * @param bufSize size of the buffer.
      * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will call `put()`, or 0 if unknown.
+     * @param numReceivers number of threads that will call `get()`, or 0 if unknown.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for the default of `mode`.
      */
-    public Pipe(int bufSize, AccessMode mode) {
-        buf = (T[]) new Object[bufSize];
-        BUF_SIZE = bufSize;
-
-        if (mode == AccessMode.mutex) {
-            creatorAccess = new Semaphore(1, false);
-            receiverAccess = new Semaphore(1, false);
-            count = new AtomicInteger();
-            putter = mutexPut;
-            getter = mutexAndSpinGet;
-        } else {
-            creatorAccess = new Semaphore(BUF_SIZE, false);
-            receiverAccess = new Semaphore(BUF_SIZE, false);
-            receiverAccess.drainPermits();
-            putter = semaphorePut;
-            getter = semaphoreGet;
-        }
+    public Pipe(int bufSize, AccessMode mode, int numCreators, int numReceivers, WaitStrategy waitStrategy) {
+        this(bufSize, mode, numCreators, numReceivers, waitStrategy, null);
+    }
 
-        in = new AtomicInteger();
-        out = new AtomicInteger();
+    /**
+     * Instantiates the memory buffer as above, publishing live metrics through JMX and JFR (see `PipeMetrics`).
+     * @param bufSize size of the buffer.
+     * @param mode type of synchronization method to use.
+     * @param numCreators number of threads that will call `put()`, or 0 if unknown.
+     * @param numReceivers number of threads that will call `get()`, or 0 if unknown.
+     * @param waitStrategy how to wait while the buffer is full/empty, or null for the default of `mode`.
+     * @param metrics the metrics to publish, or null for none.
+     */
+    public Pipe(int bufSize, AccessMode mode, int numCreators, int numReceivers, WaitStrategy waitStrategy, PipeMetrics metrics) {
+        super(bufSize, mode, numCreators, numReceivers, waitStrategy, metrics);
+        buf = (T[]) new Object[BUF_SIZE];
     }
 
     /**
@@ -61,7 +73,9 @@ public class Pipe<T> {
      * @throws InterruptedException if the thread is interrupted while waiting for access.
      */
     public void put(T item) throws InterruptedException {
-        putter.put(item);
+        long pos = claimPut();
+        buf[index(pos)] = item;
+        publishPut(pos);
     }
 
     /**
@@ -70,100 +84,148 @@ public class Pipe<T> {
      * @throws InterruptedException if the thread is interrupted while waiting for access.
      */
     public T get() throws InterruptedException {
-        return getter.get();
+        return take(claimGet());
     }
 
     /**
-     * Putter used when `Pipe.AccessMode.mutex` is provided at instantiation.
-     * This Putter gains access through a binary semaphore (mutex lock) and then busy waits until space is available in the buffer.
+     * Puts `item` in the pipeline only if there is space right now. Never waits.
+     * @param item the item to put in the pipeline.
+     * @return true if the item was put, false if the buffer was full.
      */
-    private Putter<T> mutexPut = (T item) -> {
-        // Acquire mutex.
-        try {
-            creatorAccess.acquire();
-        } catch (InterruptedException ie) {
-            throw new InterruptedException("Interrupted trying to acquire access");
-        }
-        // Spinlock until there is space in the buffer.
-        while (count.get() == BUF_SIZE) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException("Interrupted while busy waiting for space in the buffer.");
-            }
+    public boolean tryPut(T item) {
+        long pos = tryClaim(true);
+        if (pos < 0) {
+            return false;
         }
-        // Put item in buffer and release mutex.
-        buf[in.getAndUpdate(x -> (x + 1) % BUF_SIZE)] = item;
-        count.incrementAndGet();
-        creatorAccess.release();
-    };
+        buf[index(pos)] = item;
+        publishPut(pos);
+        return true;
+    }
 
     /**
-     * Getter used when `Pipe.AccessMode.mutex` is provided at instantiation.
-     * This Getter gains access through a binary semaphore (mutex lock) and then busy waits until an item is available in the buffer.
+     * Receives an item only if one is available right now. Never waits.
+     * @return the object received from the buffer, or null if the buffer was empty.
      */
-    private Getter<T> mutexAndSpinGet = () -> {
-        // Acquire access.
-        try {
-            receiverAccess.acquire();
-        } catch (InterruptedException ie) {
-            throw new InterruptedException("Interrupted trying to acquire access");
-        }
-        // Spinlock until there is an item to recieve.
-        while (count.get() == 0) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException("Interrupted while busy waiting for an item to receive");
-            }
+    public T tryGet() {
+        long pos = tryClaim(false);
+        return pos < 0 ? null : take(pos);
+    }
+
+    /**
+     * Puts `item` in the pipeline, waiting at most `timeout` for space.
+     * @param item the item to put in the pipeline.
+     * @param timeout the longest time to wait.
+     * @param unit the unit of `timeout`.
+     * @return true if the item was put, false if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public boolean offer(T item, long timeout, TimeUnit unit) throws InterruptedException {
+        long pos = claimPut(Math.max(0, unit.toNanos(timeout)));
+        if (pos < 0) {
+            return false;
         }
-        // Return item.
-        T result = buf[out.getAndUpdate(x -> (x + 1) % BUF_SIZE)];
-        count.decrementAndGet();
-        receiverAccess.release();
-        return result;
-    };
+        buf[index(pos)] = item;
+        publishPut(pos);
+        return true;
+    }
+
+    /**
+     * Receives an item, waiting at most `timeout` for one to become available.
+     * @param timeout the longest time to wait.
+     * @param unit the unit of `timeout`.
+     * @return the object received from the buffer, or null if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long pos = claimGet(Math.max(0, unit.toNanos(timeout)));
+        return pos < 0 ? null : take(pos);
+    }
 
     /**
-     * Putter used when `Pipe.AccessMode.semaphore` is provided at instantiation.
-     * This Putter acquires permits from a counting semaphore. No busy waiting involved.
-     * This Putter releases a permit on the consumer semaphore when it has succesfully placed its item in the buffer.
+     * Puts every item of the array in the pipeline, in order.
+     * As many free slots as are available (up to the remaining items) are claimed in one step, so synchronization is paid once per batch rather than once per item.
+     * @param items the items to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for access. Some of the items may already have been put.
      */
-    private Putter<T> semaphorePut = (T item) -> {
-        // Acquire access.
-        try {
-            creatorAccess.acquire();
-        } catch (InterruptedException ie) {
-            throw new InterruptedException("Interrupted trying to acquire access.");
+    public void putAll(T[] items) throws InterruptedException {
+        int off = 0;
+        while (off < items.length) {
+            off += putRange(items, off, items.length - off);
         }
-        // Put item in buffer and signal receiverAccess.
-        buf[in.getAndUpdate(x -> (x + 1) % BUF_SIZE)] = item;
-        receiverAccess.release();
-        return;
-    };
+    }
+
+    /**
+     * Puts every item of the collection in the pipeline, in iteration order.
+     * @param items the items to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for access. Some of the items may already have been put.
+     */
+    @SuppressWarnings("unchecked")
+    public void putAll(Collection<? extends T> items) throws InterruptedException {
+        // `T[]` erases to `Object[]`, and every element of the array is a `T`.
+        putAll((T[]) items.toArray());
+    }
+
+    /**
+     * Moves every item currently available, up to `maxItems`, into `sink`. Never waits.
+     * @param sink the collection to add the received items to.
+     * @param maxItems the maximum number of items to receive.
+     * @return the number of items received, possibly 0.
+     */
+    public int drainTo(Collection<? super T> sink, int maxItems) {
+        return drainRange(sink, 0, maxItems);
+    }
 
     /**
-     * Getter used when `Pipe.AccessMode.semaphore` is provided at instantiation.
-     * This Getter gains access permits through a counting semaphore. No busy waiting involved.
-     * This Getter releases a permit on the producer semaphore when it has successfully returned an item from the buffer. 
+     * The batch interface used by consumers. Waits until at least one item is available, then receives every available item up to `max`.
+     * @param max the maximum number of items to receive.
+     * @return the items received from the buffer, in order. Never empty.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     * @throws IllegalArgumentException if `max` is less than 1.
      */
-    private Getter<T> semaphoreGet = () -> {
-        // Acquire access.
-        try {
-            receiverAccess.acquire();
-        } catch (InterruptedException ie) {
-            throw new InterruptedException("Interrupted trying to acquire access.");
+    public List<T> get(int max) throws InterruptedException {
+        if (max < 1) {
+            throw new IllegalArgumentException("Must get at least one item: " + max);
         }
-        // Return item.
-        T output = buf[out.getAndUpdate(x -> (x + 1) % BUF_SIZE)];
-        creatorAccess.release();
-        return output;
-    };
+        List<T> result = new ArrayList<>(Math.min(max, BUF_SIZE));
+        getRange(result, 0, max, true);
+        return result;
+    }
+
+    /**
+     * Takes the item out of the slot of a claimed position and releases the position.
+     * @param pos the position returned by a get claim.
+     * @return the item in the slot.
+     */
+    private T take(long pos) {
+        int index = index(pos);
+        T result = buf[index];
+        buf[index] = null;
+        releaseGet(pos);
+        return result;
+    }
 
-    @FunctionalInterface
-    private interface Putter<T> {
-        abstract void put(T item) throws InterruptedException;
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void storeRange(long pos, int k, Object src, int off) {
+        // `src` is always the array passed to `putAll()`.
+        T[] items = (T[]) src;
+        for (int i = 0; i < k; i++) {
+            buf[index(pos + i)] = items[off + i];
+        }
     }
-    @FunctionalInterface
-    private interface Getter<T> {
-        abstract T get() throws InterruptedException;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void loadRange(long pos, int k, Object dst, int off) {
+        // `dst` is always the collection passed to `drainTo()` or `get(max)`.
+        Collection<? super T> sink = (Collection<? super T>) dst;
+        for (int i = 0; i < k; i++) {
+            int index = index(pos + i);
+            sink.add(buf[index]);
+            buf[index] = null;
+        }
     }
+
     // Defines which get/set methods to use.
-    public enum AccessMode { mutex, semaphore }
+    public enum AccessMode { mutex, semaphore, lockFree }
 }
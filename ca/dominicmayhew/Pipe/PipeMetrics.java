@@ -0,0 +1,231 @@
+package ca.dominicmayhew.Pipe;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Threshold;
+
+/**
+ * Live metrics of one named pipe: put/get counts and rates, how often and how long producers (consumers) waited while the buffer was full (empty), wait strategy spins, contention and current depth.
+ * Passed to a pipe at instantiation. The pipe then wraps its claim/publish steps and its `WaitStrategy` with counting versions, so a pipe without metrics runs exactly the code it ran before.
+ * Counters are `LongAdder`s, so threads do not contend on them. Waits are timed on every wait, since a wait is already the slow path.
+ *
+ * Published as a JMX MBean (see `PipeMetricsMBean`), and to Java Flight Recorder as a `ca.dominicmayhew.Pipe.Wait` event per wait longer than 1ms and a `ca.dominicmayhew.Pipe.Statistics` event every second.
+ * Call `close()` to unregister once the pipe is no longer used.
+ */
+public class PipeMetrics implements PipeMetricsMBean, AutoCloseable {
+    private final String name;
+    final LongAdder puts = new LongAdder();
+    final LongAdder gets = new LongAdder();
+    final LongAdder fullWaits = new LongAdder();
+    final LongAdder emptyWaits = new LongAdder();
+    final LongAdder fullWaitNanos = new LongAdder();
+    final LongAdder emptyWaitNanos = new LongAdder();
+    final LongAdder waitSpins = new LongAdder(); // Times a waiting thread checked its condition.
+    final LongAdder contended = new LongAdder(); // Failed mutex acquires and failed CAS claims.
+
+    private AbstractPipe pipe;
+    private ObjectName objectName;
+    private Runnable statistics;
+    private final Rate putRate = new Rate();
+    private final Rate getRate = new Rate();
+
+    /**
+     * Creates the metrics of a pipe. Nothing is registered until the metrics are passed to a pipe.
+     * @param name the name of the pipe, unique among the pipes with metrics in this JVM.
+     */
+    public PipeMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Attaches the metrics to their pipe, and registers the MBean and the periodic JFR event. Called by the pipe's constructor.
+     * @param pipe the pipe being instantiated.
+     * @throws IllegalStateException if the metrics already belong to a pipe.
+     * @throws IllegalArgumentException if the MBean cannot be registered, e.g. because the name is taken.
+     */
+    synchronized void bind(AbstractPipe pipe) {
+        if (this.pipe != null) {
+            throw new IllegalStateException("Metrics already belong to a pipe: " + name);
+        }
+        try {
+            objectName = new ObjectName("ca.dominicmayhew.Pipe:type=Pipe,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Could not register metrics of pipe: " + name, e);
+        }
+        this.pipe = pipe;
+        statistics = () -> {
+            StatisticsEvent event = new StatisticsEvent();
+            event.pipe = name;
+            event.capacity = pipe.capacity();
+            event.depth = pipe.size();
+            event.puts = puts.sum();
+            event.gets = gets.sum();
+            event.fullWaits = fullWaits.sum();
+            event.emptyWaits = emptyWaits.sum();
+            event.commit();
+        };
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, statistics);
+    }
+
+    /**
+     * Unregisters the MBean and the periodic JFR event. The counters keep counting.
+     */
+    @Override
+    public synchronized void close() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already unregistered through JMX.
+        }
+        FlightRecorder.removePeriodicEvent(statistics);
+        objectName = null;
+    }
+
+    /**
+     * Wraps the `WaitStrategy` of the pipe so that every wait is counted and timed.
+     * @param delegate the strategy that does the waiting.
+     * @param hasSpace the pipe's "buffer has space" condition, used to tell waits on a full buffer from waits on an empty one.
+     * @return the counting strategy.
+     */
+    WaitStrategy meter(WaitStrategy delegate, BooleanSupplier hasSpace) {
+        return new MeteredWait(delegate, hasSpace);
+    }
+
+    @Override public String getName() { return name; }
+    @Override public int getCapacity() { return pipe.capacity(); }
+    @Override public int getDepth() { return pipe.size(); }
+    @Override public long getPuts() { return puts.sum(); }
+    @Override public long getGets() { return gets.sum(); }
+    /** Items put per second since this attribute was last read (or since the pipe was instantiated). */
+    @Override public double getPutsPerSecond() { return putRate.since(puts.sum()); }
+    /** Items got per second since this attribute was last read (or since the pipe was instantiated). */
+    @Override public double getGetsPerSecond() { return getRate.since(gets.sum()); }
+    @Override public long getFullWaits() { return fullWaits.sum(); }
+    @Override public long getEmptyWaits() { return emptyWaits.sum(); }
+    @Override public long getFullWaitNanos() { return fullWaitNanos.sum(); }
+    @Override public long getEmptyWaitNanos() { return emptyWaitNanos.sum(); }
+    @Override public long getWaitSpins() { return waitSpins.sum(); }
+    @Override public long getContended() { return contended.sum(); }
+
+    public String toString() {
+        return String.format("%s: depth %d/%d, puts %d, gets %d, full waits %d (%.1f ms), empty waits %d (%.1f ms), spins %d, contended %d",
+            name, getDepth(), getCapacity(), getPuts(), getGets(), getFullWaits(), getFullWaitNanos() / 1e6,
+            getEmptyWaits(), getEmptyWaitNanos() / 1e6, getWaitSpins(), getContended());
+    }
+
+    /**
+     * Counts and times every wait of the pipe. A call that finds its condition already true is not a wait.
+     */
+    private final class MeteredWait implements WaitStrategy {
+        private final WaitStrategy delegate;
+        private final BooleanSupplier hasSpace;
+
+        MeteredWait(WaitStrategy delegate, BooleanSupplier hasSpace) {
+            this.delegate = delegate;
+            this.hasSpace = hasSpace;
+        }
+
+        @Override
+        public boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+            if (ready.getAsBoolean()) {
+                return true;
+            }
+            boolean full = ready == hasSpace;
+            WaitEvent event = new WaitEvent();
+            event.begin();
+            long start = System.nanoTime();
+            boolean isReady = false;
+            try {
+                isReady = delegate.await(() -> {
+                    waitSpins.increment();
+                    return ready.getAsBoolean();
+                }, timeoutNanos);
+                return isReady;
+            } finally {
+                (full ? fullWaits : emptyWaits).increment();
+                (full ? fullWaitNanos : emptyWaitNanos).add(System.nanoTime() - start);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.pipe = name;
+                    event.full = full;
+                    event.timedOut = !isReady;
+                    event.commit();
+                }
+            }
+        }
+
+        @Override
+        public void signal() {
+            delegate.signal();
+        }
+
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    /**
+     * The rate of a counter between consecutive reads.
+     */
+    private static final class Rate {
+        private long lastCount = 0;
+        private long lastTime = System.nanoTime();
+
+        synchronized double since(long count) {
+            long now = System.nanoTime();
+            double rate = (count - lastCount) * 1e9 / Math.max(1, now - lastTime);
+            lastCount = count;
+            lastTime = now;
+            return rate;
+        }
+    }
+
+    @Name("ca.dominicmayhew.Pipe.Wait")
+    @Label("Pipe Wait")
+    @Category("Pipe")
+    @Description("A producer waiting on a full buffer, or a consumer waiting on an empty buffer")
+    @Threshold("1 ms")
+    static final class WaitEvent extends Event {
+        @Label("Pipe")
+        String pipe;
+        @Label("Buffer Full")
+        boolean full;
+        @Label("Timed Out")
+        boolean timedOut;
+    }
+
+    @Name("ca.dominicmayhew.Pipe.Statistics")
+    @Label("Pipe Statistics")
+    @Category("Pipe")
+    @Period("1 s")
+    static final class StatisticsEvent extends Event {
+        @Label("Pipe")
+        String pipe;
+        @Label("Capacity")
+        int capacity;
+        @Label("Depth")
+        int depth;
+        @Label("Puts")
+        long puts;
+        @Label("Gets")
+        long gets;
+        @Label("Full Waits")
+        long fullWaits;
+        @Label("Empty Waits")
+        long emptyWaits;
+    }
+}
@@ -0,0 +1,20 @@
+package ca.dominicmayhew.Pipe;
+
+/**
+ * The JMX management interface of `PipeMetrics`. Registered as `ca.dominicmayhew.Pipe:type=Pipe,name=<name>`.
+ */
+public interface PipeMetricsMBean {
+    String getName();
+    int getCapacity();
+    int getDepth();
+    long getPuts();
+    long getGets();
+    double getPutsPerSecond();
+    double getGetsPerSecond();
+    long getFullWaits();
+    long getEmptyWaits();
+    long getFullWaitNanos();
+    long getEmptyWaitNanos();
+    long getWaitSpins();
+    long getContended();
+}
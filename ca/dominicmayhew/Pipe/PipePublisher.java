@@ -0,0 +1,257 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A `Flow.Publisher` that delivers the items of a `Pipe` to subscribers, as fast as their `request(n)` demand allows.
+ * Items are taken from the pipe in batches with `drainTo()` and delivered on an `Executor`, so no thread waits on the pipe on behalf of a subscriber.
+ * While the pipe is empty and a subscriber has demand, the pipe is checked again after an exponentially increasing delay, from 10 microseconds up to 1 millisecond.
+ *
+ * Subscribers compete for items, as threads calling `get()` do: each item goes to exactly one subscriber.
+ * Instead of interrupting consumers, call `complete()` once producers have stopped; subscribers get `onComplete()` once the pipe is empty. `error()` fails every subscriber at once.
+ *
+ * A subscriber whose `onNext()` throws is cancelled. The rest of the batch it was being given is put back into the pipe, behind the items already there, for the other subscribers; items that no longer fit are dropped and counted by `dropped()`.
+ */
+public class PipePublisher<T> implements Flow.Publisher<T> {
+    private static final long MIN_POLL_NANOS = 10_000;
+    private static final long MAX_POLL_NANOS = 1_000_000;
+
+    private final Pipe<T> pipe;
+    private final Executor executor;
+    private final int batchSize;
+    private final List<PipeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean completed = false;
+    private volatile Throwable error = null;
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Publishes the items of `pipe` on the common `ForkJoinPool`, in batches of up to 64 items.
+     * @param pipe the pipe to take items from.
+     */
+    public PipePublisher(Pipe<T> pipe) {
+        this(pipe, ForkJoinPool.commonPool(), 64);
+    }
+
+    /**
+     * Publishes the items of `pipe`.
+     * @param pipe the pipe to take items from.
+     * @param executor runs the delivery of items to subscribers.
+     * @param batchSize the most items taken from the pipe in one step.
+     * @throws IllegalArgumentException if `batchSize` is less than 1.
+     */
+    public PipePublisher(Pipe<T> pipe, Executor executor, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.pipe = pipe;
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null.");
+        }
+        PipeSubscription subscription = new PipeSubscription(subscriber);
+        subscriptions.add(subscription);
+        // Hold a drain slot during `onSubscribe()`, so that a `request(n)` made in it does not start `onNext()` before it returns.
+        subscription.wip.incrementAndGet();
+        try {
+            subscriber.onSubscribe(subscription);
+        } finally {
+            if (completed || error != null) {
+                subscription.wip.incrementAndGet();
+            }
+            subscription.unblock();
+        }
+    }
+
+    /**
+     * Signals that no more items will be put into the pipe. Every subscriber gets `onComplete()` once the pipe is empty.
+     */
+    public void complete() {
+        completed = true;
+        for (PipeSubscription subscription : subscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Fails every subscriber with `error`. Items left in the pipe are not delivered.
+     * @param error the cause of the failure.
+     */
+    public void error(Throwable error) {
+        this.error = error;
+        for (PipeSubscription subscription : subscriptions) {
+            subscription.schedule();
+        }
+    }
+
+    /**
+     * Returns the number of current subscribers.
+     * @return the number of subscribers that have not cancelled or terminated.
+     */
+    public int subscribers() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Returns the number of items lost because a subscriber's `onNext()` threw and the pipe had no space to take them back.
+     * @return the number of items dropped.
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * The subscription of one subscriber. Delivery runs in a drain loop on the `Executor`; the `wip` counter makes sure that only one drain loop runs at a time, so `onNext()` is never called concurrently.
+     */
+    private final class PipeSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger(); // Drain requests not yet handled.
+        private final AtomicBoolean polling = new AtomicBoolean(); // Whether a delayed check of the pipe is pending.
+        private final List<T> batch = new ArrayList<>();
+        private volatile boolean cancelled = false;
+        private volatile Throwable invalid = null; // A bad `request(n)`, delivered by the drain loop.
+        private long pollNanos = MIN_POLL_NANOS; // Only used by the drain loop.
+
+        PipeSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // Signalled by the drain loop, so that `onError()` is never concurrent with `onNext()`.
+                invalid = new IllegalArgumentException("Request must be positive: " + n);
+                schedule();
+                return;
+            }
+            demand.getAndAccumulate(n, (long current, long add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        /**
+         * Gives up the drain slot held during `onSubscribe()`, draining if anything was scheduled meanwhile.
+         */
+        void unblock() {
+            if (wip.decrementAndGet() != 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                if (cancelled) {
+                    return;
+                }
+                if (invalid != null) {
+                    terminate();
+                    subscriber.onError(invalid);
+                    return;
+                }
+                if (error != null) {
+                    terminate();
+                    subscriber.onError(error);
+                    return;
+                }
+                boolean done = completed; // Read before draining: if it is set and the pipe is then empty, nothing more will come.
+                long requested = demand.get();
+                long delivered = 0;
+                int n = 0;
+                while (delivered < requested && !cancelled && invalid == null) {
+                    batch.clear();
+                    n = pipe.drainTo(batch, (int) Math.min(requested - delivered, batchSize));
+                    if (n == 0) {
+                        break;
+                    }
+                    for (int i = 0; i < n; i++) {
+                        try {
+                            subscriber.onNext(batch.get(i));
+                        } catch (Throwable t) {
+                            // A subscriber must not throw; treat it as cancelling, and hand the items after the one it threw on to the other subscribers.
+                            cancel();
+                            giveBack(i + 1);
+                            return;
+                        }
+                    }
+                    delivered += n;
+                }
+                batch.clear();
+                if (delivered > 0) {
+                    demand.getAndAccumulate(delivered, (long current, long sub) -> current == Long.MAX_VALUE ? current : current - sub);
+                    pollNanos = MIN_POLL_NANOS;
+                }
+                if (done && n == 0 && pipe.size() == 0) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    if (n == 0 && demand.get() > 0) {
+                        poll();
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Checks the pipe again after a delay, since the pipe does not say when an item is put.
+         */
+        private void poll() {
+            if (!polling.compareAndSet(false, true)) {
+                return;
+            }
+            long delay = pollNanos;
+            pollNanos = Math.min(MAX_POLL_NANOS, pollNanos << 1);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor).execute(() -> {
+                polling.set(false);
+                schedule();
+            });
+        }
+
+        /**
+         * Puts the items of `batch` from index `from` back into the pipe, counting those that do not fit as dropped.
+         */
+        private void giveBack(int from) {
+            for (int i = from; i < batch.size(); i++) {
+                if (!pipe.tryPut(batch.get(i))) {
+                    dropped.incrementAndGet();
+                }
+            }
+            batch.clear();
+        }
+
+        private void terminate() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+    }
+}
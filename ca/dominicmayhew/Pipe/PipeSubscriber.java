@@ -0,0 +1,101 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * A `Flow.Subscriber` that puts every item it receives into a `Pipe`, so that an upstream `Flow.Publisher` can act as a producer.
+ * It requests `batchSize` items up front and requests more as each half batch is put, so at most `batchSize` items are ever outstanding.
+ * `onNext()` waits while the pipe is full, which holds back the publisher's thread: backpressure from the pipe's consumers reaches the publisher.
+ *
+ * The end of the upstream stream is reported through `completion()`, e.g. `subscriber.completion().whenComplete((v, e) -> ...)` to complete a `PipePublisher` on the same pipe.
+ */
+public class PipeSubscriber<T> implements Flow.Subscriber<T> {
+    private final Pipe<T> pipe;
+    private final int batchSize;
+    private final int replenish; // Items to receive before requesting more.
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+    private int received = 0;
+
+    /**
+     * Feeds `pipe`, with up to 64 items outstanding.
+     * @param pipe the pipe to put items into.
+     */
+    public PipeSubscriber(Pipe<T> pipe) {
+        this(pipe, 64);
+    }
+
+    /**
+     * Feeds `pipe`.
+     * @param pipe the pipe to put items into.
+     * @param batchSize the most items requested but not yet received.
+     * @throws IllegalArgumentException if `batchSize` is less than 1.
+     */
+    public PipeSubscriber(Pipe<T> pipe, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.pipe = pipe;
+        this.batchSize = batchSize;
+        this.replenish = Math.max(1, batchSize / 2);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            // Only one upstream at a time.
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(T item) {
+        if (item == null) {
+            throw new NullPointerException("Items must not be null.");
+        }
+        try {
+            pipe.put(item);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            subscription.cancel();
+            completion.completeExceptionally(ie);
+            return;
+        }
+        if (++received == replenish) {
+            received = 0;
+            subscription.request(replenish);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        completion.complete(null);
+    }
+
+    /**
+     * Stops receiving items from upstream.
+     */
+    public void cancel() {
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        completion.cancel(false);
+    }
+
+    /**
+     * Returns a future that completes when the upstream publisher completes, and completes exceptionally when it fails or when putting into the pipe is interrupted.
+     * @return the completion of the upstream stream.
+     */
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+}
@@ -1,103 +1,282 @@
 package ca.dominicmayhew.Pipe;
 
-import java.util.Random;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runs a test on a producer/consumer style shared memory pipeline and logs results.
  * The pipeline must have `put()` and `get()` methods.
  * This simulation uses the names `Creator` and `Receiver` to avoid namespace conflict with the functional interface `java.util.function.Consumer`.
- * `Params` is used to set the parameters for a given test run.
- * 
+ * `Params` is used to set the parameters for a given test run. Each run has its own pipe, workers and results, so one JVM can run many configurations (see `SweepRunner`).
+ *
  * @author Dominic Mayhew                      T00688238
  * @version February 19, 2022 // COMP 3411, Assignment 5
  */
 
 public class PipeTest {
-    private static Pipe<Record> pipe = new Pipe<Record>(Params.BUF_SIZE, Pipe.AccessMode.semaphore);
-    private static long baseTime = 0; // Assigned a value at start of program execution. Used to make time values more readable.
-    private static long executionTime = 0; // Total time test was executing.
-    public static ConcurrentLinkedQueue<Record> results = new ConcurrentLinkedQueue<>(); // Stores the produced records for generating results.    
     /**
-     * Runs the test and logs results.
+     * Runs the test with the default parameters and logs results.
      * @param args Command line arguments -- unused.
      */
     public static void main(String args[]) {
-        // Set up.
-        ExecutorService pool = Executors.newFixedThreadPool(Params.numCreators + Params.numReceivers);
-        baseTime = System.currentTimeMillis();
-        Record.baseTime = baseTime;
-
-        // Submit Creators to pool.
-        for (int i = 0; i < Params.numCreators; i++) {
-            pool.submit(new Creator(pipe));
-        }
-        // Give the Creators a head start.
+        Params params = new Params();
+        Results results;
         try {
-            Thread.sleep(Params.WORK_INTERVAL);
+            results = run(params);
         } catch (InterruptedException ie) {
-            System.out.println("Main was interrupted before creating Receivers.");
+            System.out.println("Main was interrupted while sleeping during the test.\n" + ie);
+            return;
         }
-        // Submit Receivers to pool.
-        for (int i = 0; i < Params.numReceivers; i++) {
-            pool.submit(new Receiver(pipe));
+
+        // Print results.
+        if (results.count != 0) {
+            System.out.println("Test complete. Here are the results.");
+            System.out.println("Parameters:\n\t#Creators: " + params.numCreators + "\t#Receivers: " + params.numReceivers +
+                "\n\tBuffer Size: " + params.BUF_SIZE + "\tAccess Mode: " + params.MODE + "\tWork Inteveral: " + params.WORK_INTERVAL +
+                "\n\tService time: " + params.SERVICE + " (" + params.WORK + ")" + (params.RATE > 0 ? "\tOffered rate: " + params.RATE + " Record/s" : ""));
+            System.out.println(String.format("%d records processed in %.2f seconds.", results.count, ((double)results.executionTime) / 1000));
+            System.out.println(String.format("Throughput: %.2f Record/s.", results.throughput()));
+            if (results.scaleUps + results.scaleDowns > 0) {
+                System.out.println(String.format("Receivers: %d at the end, %d added, %d retired.", results.receivers, results.scaleUps, results.scaleDowns));
+            }
+            if (results.offeredRate > 0) {
+                System.out.println(String.format("Offered rate: %.2f Record/s (achieved %.1f%%).", results.offeredRate, results.throughput() / results.offeredRate * 100));
+                System.out.println(String.format("Response time from schedule: %.2f ms/Record.", results.response()));
+            }
+            System.out.println(String.format("Turnaround: %.2f ms/Record.", results.turnaround()));
+            System.out.println(String.format("Creator wait time: %.2f ms/Record", results.creatorWait()));
+            System.out.println(String.format("Receiver waiting time: %.2f ms/Record", results.receiverWait()));
+            System.out.println(String.format("Time spent in buffer: %.2f ms/Record", results.bufferTime()));
+            System.out.println("Latency percentiles (ms):");
+            System.out.println(String.format("\t%-14s %10s %10s %10s %10s %10s", "", "p50", "p90", "p99", "p99.9", "max"));
+            printPercentiles("Turnaround", results.turnaroundHistogram);
+            printPercentiles("Creator wait", results.putWaitHistogram);
+            printPercentiles("Receiver wait", results.getWaitHistogram);
+            printPercentiles("In buffer", results.bufferHistogram);
+            if (results.offeredRate > 0) {
+                printPercentiles("Response", results.responseHistogram);
+            }
+        } else {
+            System.out.println("There are no results. :( Something must have gone wrong.");
         }
+    }
+
+    private static void printPercentiles(String name, LatencyHistogram histogram) {
+        System.out.println(String.format("\t%-14s %10.3f %10.3f %10.3f %10.3f %10.3f", name,
+            histogram.percentile(50) / 1e6, histogram.percentile(90) / 1e6, histogram.percentile(99) / 1e6,
+            histogram.percentile(99.9) / 1e6, histogram.max() / 1e6));
+    }
+
+    /**
+     * Runs one test: starts `Creators` and `Receivers` on a new pipe, stops them after `params.TIME_OUT` and merges the latency histograms of every `Creator` and `Receiver`.
+     * Returns only once every worker has stopped, so that consecutive runs do not overlap.
+     * @param params the parameters of the test.
+     * @return the results of the test.
+     * @throws InterruptedException if interrupted while sleeping during the test.
+     */
+    public static Results run(Params params) throws InterruptedException {
+        // Set up.
+        PipeMetrics metrics = params.METRICS ? new PipeMetrics("PipeTest") : null;
+        boolean elastic = params.MAX_RECEIVERS > params.numReceivers;
+        // An elastic pool changes the number of Receivers, so the pipe must not assume a single consumer.
+        Pipe<Record> pipe = new Pipe<Record>(params.BUF_SIZE, params.MODE, params.numCreators, elastic ? 0 : params.numReceivers, params.getWaitStrategy(), metrics);
+        ConcurrentLinkedQueue<Results> latencies = new ConcurrentLinkedQueue<>(); // Each Creator and Receiver adds its own latencies when it stops.
+        ExecutorService pool = params.VIRTUAL_THREADS ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(params.numCreators + (elastic ? 0 : params.numReceivers));
+        ConsumerPool<Record> receivers = !elastic ? null : new ConsumerPool<>("receiver", pipe, () -> new Receiver(pipe, params, latencies),
+            params.numReceivers, params.MAX_RECEIVERS, params.COOLDOWN, TimeUnit.MILLISECONDS, params.VIRTUAL_THREADS ? newVirtualThreadFactory() : Thread::new);
+        long baseTime = System.currentTimeMillis();
+        Record.baseTime = System.nanoTime(); // Used to make time values more readable.
 
-        // Shut down and print results.
         try {
-            Thread.sleep(Params.TIME_OUT);
+            // Submit Creators to pool.
+            for (int i = 0; i < params.numCreators; i++) {
+                pool.submit(new Creator(pipe, params, latencies));
+            }
+            // Give the Creators a head start.
+            Thread.sleep(params.WORK_INTERVAL);
+            // Submit Receivers to pool, or start the elastic pool of Receivers.
+            if (elastic) {
+                receivers.start();
+            } else {
+                for (int i = 0; i < params.numReceivers; i++) {
+                    pool.submit(new Receiver(pipe, params, latencies));
+                }
+            }
+            Thread.sleep(params.TIME_OUT);
+        } finally {
+            // Shut down.
             pool.shutdownNow();
-            executionTime = System.currentTimeMillis() - baseTime;
-        } catch (InterruptedException ie) {
-            System.out.println("Main was interrupted while sleeping during the test.\n" + ie);
         }
-        
+        Results results = new Results();
+        results.executionTime = System.currentTimeMillis() - baseTime;
+        results.offeredRate = params.RATE;
+        results.receivers = params.numReceivers;
+        if (elastic) {
+            // Elastic Receivers are retired, not interrupted.
+            Map<String, Long> poolMetrics = receivers.metrics();
+            receivers.stop(params.TIME_OUT, TimeUnit.MILLISECONDS);
+            for (String receiver : receivers.unstopped()) {
+                System.out.println("Receiver " + receiver + " did not stop.");
+            }
+            results.receivers = poolMetrics.get("consumers");
+            results.scaleUps = poolMetrics.get("scaleUps");
+            results.scaleDowns = poolMetrics.get("scaleDowns");
+            for (ConsumerPool.Decision decision : receivers.decisions()) {
+                System.out.println(decision);
+            }
+        }
+        pool.awaitTermination(params.TIME_OUT, TimeUnit.MILLISECONDS);
+        if (metrics != null) {
+            metrics.close();
+            System.out.println(metrics);
+        }
+
         // Collect results.
-        long count = 0, putRequestTime = 0, putCompleteTime = 0, getRequestTime = 0, getCompleteTime = 0;
-        for (Record rec : results) {
-            putRequestTime += rec.getPutRequestTime();
-            putCompleteTime += rec.getPutCompleteTime();
-            getRequestTime += rec.getGetRequestTime();
-            getCompleteTime += rec.getGetCompleteTime();
-            count++;
+        for (Results worker : latencies) {
+            results.add(worker);
         }
+        return results;
+    }
 
-        // Print results.
-        if (count != 0) {
-            System.out.println("Test complete. Here are the results.");
-            System.out.println("Parameters:\n\t#Creators: " + Params.numCreators + "\t#Receivers: " + Params.numReceivers +
-                "\n\tBuffer Size: " + Params.BUF_SIZE + "\tWork Inteveral: " + Params.WORK_INTERVAL);
-            System.out.println(String.format("%d records processed in %.2f seconds.", count, ((double)executionTime) / 1000));
-            System.out.println(String.format("Throughput: %.2f Record/s.", ((double)count) / executionTime * 1000));
-            System.out.println(String.format("Turnaround: %.2f ms/Record.", (double)(getCompleteTime - putRequestTime) / count));
-            System.out.println(String.format("Creator wait time: %.2f ms/Record", (double)(putCompleteTime - putRequestTime) / count));
-            System.out.println(String.format("Receiver waiting time: %.2f ms/Record", (double)(getCompleteTime - getRequestTime) / count));
-            System.out.println(String.format("Time spent in buffer: %.2f ms/Record", (double)(getCompleteTime - putCompleteTime) / count));
-        } else {
-            System.out.println("There are no results. :( Something must have gone wrong.");
+    /**
+     * Returns an `ExecutorService` that starts a new virtual thread for each task.
+     * Looked up reflectively so that the test still compiles and runs on platform threads with Java versions before 21.
+     * @return a virtual-thread-per-task `ExecutorService`.
+     * @throws UnsupportedOperationException if the running Java version has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.", e);
         }
     }
-}
 
-/**
- * Stores parameters used by PipeTest. Can be reset by PipeTest to run multiple variations.
- */
-class Params {
-    protected static int numCreators = 10;
-    protected static int numReceivers = 10;
-    protected static int BUF_SIZE = 20;
-    protected static int WORK_INTERVAL = 20; // Used by Workers to simulate a processing delay.
-    protected static int TIME_OUT = 10000; // How long to run the test.
+    /**
+     * Returns a `ThreadFactory` of virtual threads, for the elastic pool of Receivers.
+     * Looked up reflectively for the same reason as `newVirtualThreadExecutor()`.
+     * @return a factory of unstarted virtual threads.
+     * @throws UnsupportedOperationException if the running Java version has no virtual threads.
+     */
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later.", e);
+        }
+    }
 
     /**
-     * Returns a random `int` between (WORK_INTERVAL / 2) and (WORK_INTERVAL + WORK_INTERVAL / 2).
-     * Used by Workers to simulate a processing period.
-     * @return a random integer centered on WORK_INTERVAL.
+     * The results of one test run. Latencies of every record received are kept in histograms, in nanoseconds; the means are given in milliseconds.
+     * Each `Creator` and `Receiver` records into its own `Results`, which are merged at the end of the run: `Creators` record how long their puts took, `Receivers` every other latency.
      */
-    protected static int getWorkInterval() {
-        Random rand = new Random();
-        return rand.nextInt(Params.WORK_INTERVAL) + Params.WORK_INTERVAL / 2;
+    public static class Results {
+        private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+        long count = 0;
+        long executionTime = 0; // Total time test was executing.
+        double offeredRate = 0; // Records per second the Creators were scheduled to put, or 0 for a closed-loop test.
+        long receivers = 0; // Receivers running at the end of the test.
+        long scaleUps = 0; // Receivers added by an elastic pool.
+        long scaleDowns = 0; // Receivers retired by an elastic pool.
+        final LatencyHistogram putWaitHistogram = new LatencyHistogram(); // putComplete - putRequest, recorded by the Creator
+        final LatencyHistogram getWaitHistogram = new LatencyHistogram(); // getComplete - getRequest
+        final LatencyHistogram bufferHistogram = new LatencyHistogram(); // getComplete - putComplete
+        final LatencyHistogram turnaroundHistogram = new LatencyHistogram(); // getComplete - putRequest
+        final LatencyHistogram responseHistogram = new LatencyHistogram(); // getComplete - intended, i.e. including time the Creator was behind schedule
+
+        public long count() { return count; }
+        public long executionTime() { return executionTime; }
+        public double throughput() { return ((double)count) / executionTime * 1000; }
+        public double offeredRate() { return offeredRate; }
+        public long receivers() { return receivers; }
+        public long scaleUps() { return scaleUps; }
+        public long scaleDowns() { return scaleDowns; }
+        public double response() { return responseHistogram.mean() / 1e6; }
+        public double turnaround() { return turnaroundHistogram.mean() / 1e6; }
+        public double creatorWait() { return putWaitHistogram.mean() / 1e6; }
+        public double receiverWait() { return getWaitHistogram.mean() / 1e6; }
+        public double bufferTime() { return bufferHistogram.mean() / 1e6; }
+        public LatencyHistogram turnaroundHistogram() { return turnaroundHistogram; }
+        public LatencyHistogram creatorWaitHistogram() { return putWaitHistogram; }
+        public LatencyHistogram receiverWaitHistogram() { return getWaitHistogram; }
+        public LatencyHistogram bufferTimeHistogram() { return bufferHistogram; }
+        public LatencyHistogram responseHistogram() { return responseHistogram; }
+
+        /**
+         * Records the latencies of one received `Record`. Called by its `Receiver`.
+         * The response time is measured from the time the `Record` was scheduled to be put in an open-loop test, and is the turnaround time otherwise.
+         * The time in buffer waits for the `Creator` to stamp the put complete time, and is 0 if the `Record` was got before it did.
+         * @param rec the received `Record`.
+         */
+        void record(Record rec) {
+            getWaitHistogram.record(rec.getGetCompleteTime() - rec.getGetRequestTime());
+            bufferHistogram.record(Math.max(0, rec.getGetCompleteTime() - rec.awaitPutCompleteTime()));
+            turnaroundHistogram.record(rec.getGetCompleteTime() - rec.getPutRequestTime());
+            long intendedTime = rec.getIntendedTime();
+            responseHistogram.record(rec.getGetCompleteTime() - (intendedTime != -1 ? intendedTime : rec.getPutRequestTime()));
+            count++;
+        }
+
+        /**
+         * Records how long one `put()` took. Called by the `Creator`, on its own thread, once `put()` returns.
+         * @param putWait the time from put request to put complete, in nanoseconds.
+         */
+        void recordPut(long putWait) {
+            putWaitHistogram.record(putWait);
+        }
+
+        /**
+         * Merges the latencies recorded by another `Results` into this one.
+         * @param other the results to merge.
+         */
+        void add(Results other) {
+            putWaitHistogram.add(other.putWaitHistogram);
+            getWaitHistogram.add(other.getWaitHistogram);
+            bufferHistogram.add(other.bufferHistogram);
+            turnaroundHistogram.add(other.turnaroundHistogram);
+            responseHistogram.add(other.responseHistogram);
+            count += other.count;
+        }
+
+        /**
+         * Returns every measurement of the run by name, in a fixed order. Used for machine-readable output.
+         * @return every measurement of the run by name.
+         */
+        public Map<String, Double> metrics() {
+            Map<String, Double> metrics = new LinkedHashMap<>();
+            metrics.put("records", (double) count);
+            metrics.put("seconds", executionTime / 1000.0);
+            metrics.put("offeredRate", offeredRate);
+            metrics.put("throughput", throughput());
+            metrics.put("turnaroundMs", turnaround());
+            metrics.put("creatorWaitMs", creatorWait());
+            metrics.put("receiverWaitMs", receiverWait());
+            metrics.put("bufferMs", bufferTime());
+            metrics.put("responseMs", response());
+            metrics.put("receivers", (double) receivers);
+            metrics.put("scaleUps", (double) scaleUps);
+            metrics.put("scaleDowns", (double) scaleDowns);
+            putPercentiles(metrics, "turnaround", turnaroundHistogram);
+            putPercentiles(metrics, "creatorWait", putWaitHistogram);
+            putPercentiles(metrics, "receiverWait", getWaitHistogram);
+            putPercentiles(metrics, "buffer", bufferHistogram);
+            putPercentiles(metrics, "response", responseHistogram);
+            return metrics;
+        }
+
+        private static void putPercentiles(Map<String, Double> metrics, String name, LatencyHistogram histogram) {
+            for (double p : PERCENTILES) {
+                metrics.put(name + "P" + String.valueOf(p).replace(".0", "").replace(".", "") + "Ms", histogram.percentile(p) / 1e6);
+            }
+            metrics.put(name + "MaxMs", histogram.max() / 1e6);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,324 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A chain of processing stages connected by `Pipes`, e.g. parse -> enrich -> aggregate -> emit.
+ * Each stage has a function, its own number of worker threads and the size of its input buffer, so that each stage can be given the parallelism its cost needs.
+ * Every pipe is bounded, so a slow stage blocks the stages before it, back to `put()`.
+ *
+ * Built with `Pipeline.builder()`, e.g.
+ * `Pipeline<String, Event> pipeline = Pipeline.<String>builder().stage("parse", Event::parse, 2, 64).stage("enrich", enricher::enrich, 4, 64).build(64);`
+ * A stage function that returns null drops the item. A stage function that throws drops the item and counts an error; the worker carries on.
+ *
+ * @param <I> the type of items put into the pipeline.
+ * @param <O> the type of items got from the pipeline.
+ */
+public class Pipeline<I, O> {
+    private final List<Stage> stages;
+    private final Pipe<I> input;
+    private final Pipe<O> output;
+    private List<Thread> threads;
+    private long startTime;
+
+    private Pipeline(List<Stage> stages, Pipe<I> input, Pipe<O> output) {
+        this.stages = stages;
+        this.input = input;
+        this.output = output;
+    }
+
+    /**
+     * Returns a builder for a pipeline that takes items of type `T`.
+     * @param <T> the type of items put into the pipeline.
+     * @return a builder with no stages.
+     */
+    public static <T> Builder<T, T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Starts the worker threads of every stage. Threads are named after their stage.
+     * @throws IllegalStateException if the pipeline was already started.
+     */
+    public synchronized void start() {
+        if (threads != null) {
+            throw new IllegalStateException("Pipeline already started.");
+        }
+        threads = new ArrayList<>();
+        startTime = System.nanoTime();
+        for (Stage stage : stages) {
+            for (int i = 0; i < stage.workers; i++) {
+                Thread thread = new Thread(stage, "pipeline-" + stage.name + "-" + i);
+                thread.start();
+                threads.add(thread);
+            }
+        }
+    }
+
+    /**
+     * Stops every worker by interrupting it. A stage function that does not respond to interrupts finishes its current item first. Items in the buffers are left where they are.
+     * @param timeout the longest time to wait for the workers to stop.
+     * @param unit the unit of `timeout`.
+     * @return true if every worker stopped, false if the wait timed out.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+        if (threads == null) {
+            return true;
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            TimeUnit.NANOSECONDS.timedJoin(thread, Math.max(1, deadline - System.nanoTime()));
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts an item into the first stage. Waits while its buffer is full.
+     * @param item the item to process.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public void put(I item) throws InterruptedException {
+        input.put(item);
+    }
+
+    /**
+     * Receives an item from the last stage. Waits while none is available.
+     * @return the processed item.
+     * @throws InterruptedException if the thread is interrupted while waiting for access.
+     */
+    public O get() throws InterruptedException {
+        return output.get();
+    }
+
+    /**
+     * Returns the pipe into the first stage, e.g. for its batch or non-blocking methods.
+     * @return the pipe into the first stage.
+     */
+    public Pipe<I> input() {
+        return input;
+    }
+
+    /**
+     * Returns the pipe out of the last stage, e.g. for its batch or non-blocking methods.
+     * @return the pipe out of the last stage.
+     */
+    public Pipe<O> output() {
+        return output;
+    }
+
+    /**
+     * Returns the current throughput, utilization and backlog of every stage, in order.
+     * @return one report per stage.
+     */
+    public List<StageReport> report() {
+        double seconds = threads == null ? 0 : (System.nanoTime() - startTime) / 1e9;
+        List<StageReport> reports = new ArrayList<>();
+        for (Stage stage : stages) {
+            StageReport report = new StageReport();
+            report.name = stage.name;
+            report.workers = stage.workers;
+            report.processed = stage.processed.sum();
+            report.errors = stage.errors.sum();
+            report.throughput = seconds > 0 ? report.processed / seconds : 0;
+            report.utilization = seconds > 0 ? stage.busyNanos.sum() / 1e9 / (seconds * stage.workers) : 0;
+            report.depth = stage.in.size();
+            report.capacity = stage.in.capacity();
+            reports.add(report);
+        }
+        return reports;
+    }
+
+    /**
+     * Returns a table of the current report of every stage.
+     * @return a readable report of every stage.
+     */
+    public String toString() {
+        StringBuilder table = new StringBuilder(String.format("%-16s %7s %12s %12s %8s %11s %8s",
+            "Stage", "Workers", "Processed", "Items/s", "Busy", "Backlog", "Errors"));
+        for (StageReport report : report()) {
+            table.append('\n').append(report);
+        }
+        return table.toString();
+    }
+
+    /**
+     * A snapshot of one stage. A stage whose utilization is close to 1 while the stage before it has a full backlog is the bottleneck, and needs more workers.
+     */
+    public static class StageReport {
+        String name;
+        int workers;
+        long processed;
+        long errors;
+        double throughput;
+        double utilization;
+        int depth;
+        int capacity;
+
+        public String name() { return name; }
+        public int workers() { return workers; }
+        public long processed() { return processed; }
+        public long errors() { return errors; }
+        /** Items processed per second since the pipeline started. */
+        public double throughput() { return throughput; }
+        /** Fraction of the workers' time spent in the stage function, from 0 to 1. */
+        public double utilization() { return utilization; }
+        /** Items waiting in the stage's input buffer. */
+        public int depth() { return depth; }
+        public int capacity() { return capacity; }
+
+        public String toString() {
+            return String.format("%-16s %7d %12d %12.1f %7.1f%% %5d/%-5d %8d",
+                name, workers, processed, throughput, utilization * 100, depth, capacity, errors);
+        }
+    }
+
+    /**
+     * Builds a `Pipeline` one stage at a time. Each call to `stage()` changes the output type of the pipeline to that of the new stage.
+     * @param <I> the type of items put into the pipeline.
+     * @param <O> the type of items output by the last stage so far.
+     */
+    public static class Builder<I, O> {
+        private Pipe.AccessMode mode = Pipe.AccessMode.semaphore;
+        private Supplier<WaitStrategy> waitStrategy = () -> null;
+        private final List<StageSpec> specs = new ArrayList<>();
+
+        private Builder() {}
+
+        /**
+         * Sets the synchronization method of every pipe. `Pipe.AccessMode.semaphore` by default.
+         * @param mode the synchronization method of every pipe.
+         * @return this builder.
+         */
+        public Builder<I, O> mode(Pipe.AccessMode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Sets how every pipe waits while full/empty. Called once per pipe, since a `WaitStrategy` may belong to a single pipe.
+         * @param waitStrategy returns a new `WaitStrategy`, or null for the default of the mode.
+         * @return this builder.
+         */
+        public Builder<I, O> waitStrategy(Supplier<WaitStrategy> waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        /**
+         * Adds a stage after the current last stage.
+         * @param <R> the type of items output by the new stage.
+         * @param name the name of the stage, used in reports.
+         * @param function the work of the stage, applied to every item. Returns null to drop the item. Must be thread safe if `workers` is more than 1.
+         * @param workers the number of threads running the stage.
+         * @param bufSize the size of the stage's input buffer.
+         * @return this builder, now outputting the items of the new stage.
+         * @throws IllegalArgumentException if `workers` or `bufSize` is less than 1.
+         */
+        @SuppressWarnings("unchecked")
+        public <R> Builder<I, R> stage(String name, Function<? super O, ? extends R> function, int workers, int bufSize) {
+            if (workers < 1 || bufSize < 1) {
+                throw new IllegalArgumentException("A stage needs at least 1 worker and a buffer of at least 1: " + name);
+            }
+            specs.add(new StageSpec(name, (Function<Object, Object>) function, workers, bufSize));
+            return (Builder<I, R>) this;
+        }
+
+        /**
+         * Creates the pipes and the stages. Each pipe is told how many workers put into it and get from it, so that a pipe between two single-worker stages can use the single-producer/single-consumer path.
+         * @param outputBufSize the size of the buffer after the last stage.
+         * @return the pipeline, not yet started.
+         * @throws IllegalStateException if no stage was added.
+         */
+        @SuppressWarnings("unchecked")
+        public Pipeline<I, O> build(int outputBufSize) {
+            if (specs.isEmpty()) {
+                throw new IllegalStateException("A pipeline needs at least one stage.");
+            }
+            List<Pipe<Object>> pipes = new ArrayList<>();
+            for (int i = 0; i < specs.size(); i++) {
+                int creators = i == 0 ? 0 : specs.get(i - 1).workers;
+                pipes.add(new Pipe<>(specs.get(i).bufSize, mode, creators, specs.get(i).workers, waitStrategy.get()));
+            }
+            pipes.add(new Pipe<>(outputBufSize, mode, specs.get(specs.size() - 1).workers, 0, waitStrategy.get()));
+            List<Stage> stages = new ArrayList<>();
+            for (int i = 0; i < specs.size(); i++) {
+                StageSpec spec = specs.get(i);
+                stages.add(new Stage(spec.name, spec.function, spec.workers, pipes.get(i), pipes.get(i + 1)));
+            }
+            return new Pipeline<>(stages, (Pipe<I>) (Pipe<?>) pipes.get(0), (Pipe<O>) (Pipe<?>) pipes.get(specs.size()));
+        }
+    }
+
+    private static class StageSpec {
+        final String name;
+        final Function<Object, Object> function;
+        final int workers;
+        final int bufSize;
+
+        StageSpec(String name, Function<Object, Object> function, int workers, int bufSize) {
+            this.name = name;
+            this.function = function;
+            this.workers = workers;
+            this.bufSize = bufSize;
+        }
+    }
+
+    /**
+     * One stage: every worker of the stage runs this loop until interrupted.
+     */
+    private static class Stage implements Runnable {
+        final String name;
+        final Function<Object, Object> function;
+        final int workers;
+        final Pipe<Object> in;
+        final Pipe<Object> out;
+        final LongAdder processed = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder busyNanos = new LongAdder(); // Time spent in `function`, not waiting on the pipes.
+
+        Stage(String name, Function<Object, Object> function, int workers, Pipe<Object> in, Pipe<Object> out) {
+            this.name = name;
+            this.function = function;
+            this.workers = workers;
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Object item = in.get();
+                    Object result;
+                    long start = System.nanoTime();
+                    try {
+                        result = function.apply(item);
+                    } catch (RuntimeException e) {
+                        errors.increment();
+                        continue;
+                    } finally {
+                        busyNanos.add(System.nanoTime() - start);
+                    }
+                    processed.increment();
+                    if (result != null) {
+                        out.put(result);
+                    }
+                }
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package ca.dominicmayhew.Pipe;
 
+import java.util.Queue;
+
  /**
  * A simulated consumer that receives `Records` from a `Pipe`.
  * `Records` are marked with a processing stamp, the time that the `Receiver` requested access to the Pipe, and the time that access was completed.
@@ -9,47 +11,87 @@ package ca.dominicmayhew.Pipe;
  * @author Dominic Mayhew                      T00688238
  * @version February 18, 2022 // COMP 3411, Assignment 5
  */
-class Receiver extends Worker<Record> {
+class Receiver extends Worker<Record> implements ConsumerPool.Handler<Record> {
     private static int receiverCount = 0;
+    private Queue<PipeTest.Results> results; // Collects the latencies of every Receiver of the test run.
+    private PipeTest.Results latencies = new PipeTest.Results(); // Written only by this Receiver's thread.
 
     /**
      * Takes the pipe this `Receiver` will attach to.
      * @param pipe the pipe this `Receiver` will attach to.
+     * @param params the parameters of the test run.
+     * @param results the queue that this `Receiver` adds its latencies to when it stops.
      */
-    public Receiver (Pipe<Record> pipe) {
-        super(receiverCount++, pipe);
+    public Receiver (Pipe<Record> pipe, Params params, Queue<PipeTest.Results> results) {
+        super(receiverCount++, pipe, params);
+        this.results = results;
     }
 
     /**
      * The `Runnable` interface to be submitted to an `ExecutorService`.
      * `Records` are marked with a processing stamp, the time that the `Receiver` requested access to the Pipe, and the time that access was completed.
      * Following access to the pipe, the `Receiver` busy waits for a prescribed interval to represent processing time.
+     * The latencies of each `Record` are recorded into this `Receiver`'s own histograms, which are handed over when it stops. The `Record` is then returned to its `Creator` if it is pooled.
      * Will run until the thread is interrupted.
      */
     public void run() {
-        while (true) {
-            try {
-                long getRequestTime = System.currentTimeMillis();
+        try {
+            while (true) {
+                long getRequestTime = System.nanoTime();
                 Record nextRecord = pipe.get();
-                nextRecord.setGetCompleteTime(System.currentTimeMillis());
-                nextRecord.setGetRequestTime(getRequestTime);
-                receive(nextRecord);
-                PipeTest.results.add(nextRecord);
-            } catch (ProcessingException pe) {
-                printExceptionMessage(pe);
-                return;
-            } catch (InterruptedException ie) {
-                return;
+                process(nextRecord, getRequestTime);
             }
+        } catch (ProcessingException pe) {
+            printExceptionMessage(pe);
+        } catch (InterruptedException ie) {
+            return;
+        } finally {
+            results.add(latencies);
         }
     }
 
+    /**
+     * Processes one `Record` got by a `ConsumerPool`, which stops this `Receiver` gracefully instead of interrupting it.
+     * A `Record` that fails processing is reported and skipped.
+     * @param nextRecord the `Record` got from the pipe.
+     * @param getRequestTime when the pool started waiting for the `Record`.
+     * @throws InterruptedException if the thread is interrupted while simulating work.
+     */
+    @Override
+    public void handle(Record nextRecord, long getRequestTime) throws InterruptedException {
+        try {
+            process(nextRecord, getRequestTime);
+        } catch (ProcessingException pe) {
+            printExceptionMessage(pe);
+        }
+    }
+
+    /**
+     * Hands this `Receiver`'s latencies over once its `ConsumerPool` has stopped it.
+     */
+    @Override
+    public void close() {
+        results.add(latencies);
+    }
+
+    /**
+     * Stamps the get times of a `Record`, receives it, records its latencies and returns it to its `Creator` if it is pooled.
+     */
+    private void process(Record nextRecord, long getRequestTime) throws ProcessingException, InterruptedException {
+        nextRecord.setGetCompleteTime(System.nanoTime());
+        nextRecord.setGetRequestTime(getRequestTime);
+        receive(nextRecord);
+        latencies.record(nextRecord);
+        nextRecord.recycle();
+    }
+
     /**
      * Busy waits for a prescribed interval, then stamps the `Record`.
      * @param nextRecord the `Record` to stamp.
      * @throws ProcessingException if the `Record` already has a receiver stamp (i.e. if it has already been received from the buffer).
+     * @throws InterruptedException if the thread is interrupted while simulating work.
      */
-    private void receive(Record nextRecord) throws ProcessingException {
+    private void receive(Record nextRecord) throws ProcessingException, InterruptedException {
         // Simulate a work period.
         spin();
         // Process Record.
@@ -4,35 +4,70 @@ package ca.dominicmayhew.Pipe;
  * The object used by Workers to simulate use of a producer/consumer pipeline.
  * Includes fields for ID stamps from the `Creator` and `Receiver`, and time stamps for when each `Worker` requested access to the `Pipe` and when that access was completed.
  * Throws `ProcessingException`s if an attempt is made to modify a field more than once.
+ * ID stamps are packed into a `long` (see `Worker.getStamp()`), so stamping allocates nothing. A `Record` that belongs to a pool can be recycled once it has been received, and reused with `reset()`.
  * 
  * @author Dominic Mayhew                      T00688238
  * @version February 18, 2022 // COMP 3411, Assignment 5
  */
 
 public class Record {    
-    private String creatorStamp;
-    private String receiverStamp = "";
+    private long creatorStamp;
+    private long receiverStamp = -1;
+    private final Pipe<Record> pool; // Where the Record goes back to once received, or null.
 
+    private long intendedTime = -1; // When the Creator was scheduled to put the Record, in an open-loop test.
     private long putRequestTime = -1;
-    private long putCompleteTime = -1;
+    private volatile long putCompleteTime = -1; // Stamped after `put()` returns, when a `Receiver` may already have the `Record`.
     private long getRequestTime = -1;
     private long getCompleteTime = -1;
 
-    public static long baseTime = 0; // Set by PipeTest.main().
+    public static long baseTime = 0; // Set by PipeTest.run(). Times are from `System.nanoTime()`.
 
     /**
      * Takes only a creator ID stamp. All other fields set by setter methods after instantiation.
      * @param creatorStamp the ID stamp of the `Creator` of this object.
      */
-    public Record(String creatorStamp) {
+    public Record(long creatorStamp) {
+        this(creatorStamp, null);
+    }
+
+    /**
+     * Takes a creator ID stamp and the pool that the `Record` is returned to by `recycle()`.
+     * @param creatorStamp the ID stamp of the `Creator` of this object.
+     * @param pool the pool this `Record` belongs to, or null if it is not recycled.
+     */
+    public Record(long creatorStamp, Pipe<Record> pool) {
         this.creatorStamp = creatorStamp;
+        this.pool = pool;
+    }
+
+    /**
+     * Clears every field so that a recycled `Record` can be used again, as if newly instantiated.
+     * @param creatorStamp the new ID stamp of the `Creator`.
+     */
+    public void reset(long creatorStamp) {
+        this.creatorStamp = creatorStamp;
+        receiverStamp = -1;
+        intendedTime = -1;
+        putRequestTime = -1;
+        putCompleteTime = -1;
+        getRequestTime = -1;
+        getCompleteTime = -1;
+    }
+
+    /**
+     * Returns this `Record` to its pool. Must only be called once the `Record` is no longer used.
+     * @return true if the `Record` was returned, false if it has no pool or the pool was full.
+     */
+    public boolean recycle() {
+        return pool != null && pool.tryPut(this);
     }
 
     // IDs
-    public String getCreatorStamp() { return creatorStamp; }
-    public String getReceiverStamp() { return receiverStamp; }
-    public void setReceiverStamp(String receiverStamp) throws ProcessingException {
-        if (this.receiverStamp.equals("")) {
+    public long getCreatorStamp() { return creatorStamp; }
+    public long getReceiverStamp() { return receiverStamp; }
+    public void setReceiverStamp(long receiverStamp) throws ProcessingException {
+        if (this.receiverStamp == -1) {
             this.receiverStamp = receiverStamp;
         } else {
             throw new ProcessingException("Attempted to set receiverStamp on a record more than once.", this);
@@ -40,12 +75,36 @@ public class Record {
     }
 
     // Time getters
+    public long getIntendedTime() { return intendedTime; }
     public long getPutRequestTime() { return putRequestTime; }
     public long getPutCompleteTime() { return putCompleteTime; }
     public long getGetRequestTime() { return getRequestTime; }
     public long getGetCompleteTime() { return getCompleteTime; }
 
+    /**
+     * Returns the put complete time, waiting for the `Creator` to stamp it. The `Creator` does so right after `put()` returns, so the wait is short, and only happens if a `Receiver` got the `Record` first.
+     * @return the put complete time.
+     */
+    public long awaitPutCompleteTime() {
+        long time;
+        for (int spins = 0; (time = putCompleteTime) == -1; spins++) {
+            if (spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return time;
+    }
+
     // Time setters.
+    public void setIntendedTime(long time) throws ProcessingException {
+        if (intendedTime != -1) {
+            throw new ProcessingException("Attempted to set intendedTime on a record more than once.", this);
+        } else {
+            intendedTime = time;
+        }
+    }
     public void setPutRequestTime(long time) throws ProcessingException {
         if (putCompleteTime != -1) {
             throw new ProcessingException("Attempted to set putRequestTime on a record more than once.", this);
@@ -77,15 +136,24 @@ public class Record {
 
     public String toString() {
         return
-            "\tCreator:\t" + getCreatorStamp() +
+            "\tCreator:\t" + stampToString(getCreatorStamp()) +
             "\tPut Request:\t" + (getPutRequestTime() - baseTime) +
             "\tGet Request:\t" + (getGetRequestTime() - baseTime) +
-            "\n\tReceiver:\t" + getReceiverStamp() + 
+            "\n\tReceiver:\t" + stampToString(getReceiverStamp()) + 
             "\tPut complete:\t" + (getPutCompleteTime() - baseTime) +
             "\tGet complete:\t" + (getGetCompleteTime() - baseTime);
     }
 
     public boolean equals(Record other) {
-        return (creatorStamp.equals(other.getCreatorStamp()) && receiverStamp.equals(other.getReceiverStamp()));
+        return (creatorStamp == other.getCreatorStamp() && receiverStamp == other.getReceiverStamp());
+    }
+
+    /**
+     * Returns a readable form of a packed ID stamp.
+     * @param stamp an ID stamp from `Worker.getStamp()`, or -1 if unset.
+     * @return the stamp as `workerId.processedCount`, or an empty String if unset.
+     */
+    public static String stampToString(long stamp) {
+        return stamp == -1 ? "" : (stamp >>> 32) + "." + (int) stamp;
     }
 }
@@ -0,0 +1,270 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * A pipeline that lets many workers process items in parallel, yet releases the results in the order the items were put.
+ * `put()` gives each item the next sequence number. Workers `take()` tickets, process them in any order and `complete()` them. Completed results wait in a reorder buffer until every earlier item has completed, and are then released into the output `Pipe`, from which consumers `get()` them.
+ *
+ * At most `window` items are in flight (put but not yet released): `put()` waits while the window is full, so the reorder buffer never holds more than `window` results and a slow item holds back at most `window` items behind it.
+ * Every ticket taken must be completed, with a null result to drop the item, or the results after it are never released.
+ *
+ * @param <I> the type of items put into the pipe.
+ * @param <O> the type of results got from the pipe.
+ */
+public class ResequencingPipe<I, O> {
+    private static final Object DROPPED = new Object(); // Marks a completed item with no result.
+    private static final long STALL_CHECK_MILLIS = 10; // How often a consumer waiting for a result checks for a stalled release.
+
+    private final int window;
+    private final Pipe<Ticket<I>> input;
+    private final Pipe<O> output;
+    private final AtomicReferenceArray<Object> reorder; // Result of sequence number s at s % window.
+    private final AtomicLong sequence = new AtomicLong(); // Next sequence number to give out.
+    private final AtomicLong released = new AtomicLong(); // Next sequence number to release. Only written by the releasing thread.
+    private final AtomicInteger releasing = new AtomicInteger(); // Release requests not yet handled, see `release()`.
+    private final AtomicBoolean stalled = new AtomicBoolean(); // Whether a release was interrupted with results left to release.
+    private final AtomicInteger depth = new AtomicInteger(); // Results in the reorder buffer.
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final WaitStrategy waitStrategy;
+    private final BooleanSupplier hasWindow;
+
+    /**
+     * Instantiates the pipe, waiting with a blocking `WaitStrategy` while the window is full.
+     * @param window the most items in flight, i.e. the size of the reorder buffer.
+     * @param outputBufSize the size of the buffer of released results.
+     * @param mode type of synchronization method of the input and output pipes.
+     */
+    public ResequencingPipe(int window, int outputBufSize, Pipe.AccessMode mode) {
+        this(window, outputBufSize, mode, null);
+    }
+
+    /**
+     * Instantiates the pipe. The input pipe holds `window` tickets, so a sequence number, once given, is always put into it without waiting.
+     * @param window the most items in flight, i.e. the size of the reorder buffer.
+     * @param outputBufSize the size of the buffer of released results.
+     * @param mode type of synchronization method of the input and output pipes.
+     * @param waitStrategy how producers wait while the window is full, or null for `WaitStrategy.blocking()`.
+     * @throws IllegalArgumentException if `window` is less than 1.
+     */
+    public ResequencingPipe(int window, int outputBufSize, Pipe.AccessMode mode, WaitStrategy waitStrategy) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1: " + window);
+        }
+        this.window = window;
+        input = new Pipe<>(window, mode, 0, 0);
+        output = new Pipe<>(outputBufSize, mode, 0, 0);
+        reorder = new AtomicReferenceArray<>(window);
+        this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.blocking();
+        hasWindow = () -> sequence.get() - released.get() < window;
+    }
+
+    /**
+     * The interface used by producers. Gives `item` the next sequence number, waiting while `window` items are in flight.
+     * @param item the item to process.
+     * @throws InterruptedException if the thread is interrupted while waiting for the window. The item then has no sequence number; once it has one, it is always put, and an interrupt is kept for the caller.
+     */
+    public void put(I item) throws InterruptedException {
+        long seq;
+        while (true) {
+            seq = sequence.get();
+            if (seq - released.get() >= window) {
+                waitStrategy.await(hasWindow);
+            } else if (sequence.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        // Tickets in the input pipe are in flight, so there is always space and `put()` never waits for it, though it may wait for the lock.
+        // It must not give up, since the results after a sequence number with no ticket would never be released.
+        Ticket<I> ticket = new Ticket<>(seq, item);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                input.put(ticket);
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The interface used by workers. Waits for the next item to process.
+     * @return the ticket of the item, to be passed to `complete()`.
+     * @throws InterruptedException if the thread is interrupted while waiting for an item.
+     */
+    public Ticket<I> take() throws InterruptedException {
+        return input.get();
+    }
+
+    /**
+     * Stores the result of a ticket in the reorder buffer, and releases every result that is now in order.
+     * The calling thread may release other workers' results, waiting while the output buffer is full.
+     * @param ticket a ticket from `take()`, completed once.
+     * @param result the result of the item, or null to drop it.
+     * @throws InterruptedException if the thread is interrupted while waiting for space in the output buffer. The result is kept, with the results after it, and released by the next `complete()` or `get()`.
+     */
+    public void complete(Ticket<I> ticket, O result) throws InterruptedException {
+        reorder.set(index(ticket.sequence), result != null ? result : DROPPED);
+        int d = depth.incrementAndGet();
+        int max;
+        while (d > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, d));
+        release(true);
+    }
+
+    /**
+     * The interface used by consumers. Results are got in the order their items were put.
+     * With several consumers, each result goes to one of them, so only the order of `get()` calls is preserved.
+     * @return the next result.
+     * @throws InterruptedException if the thread is interrupted while waiting for a result.
+     */
+    public O get() throws InterruptedException {
+        O result;
+        do {
+            if (stalled.compareAndSet(true, false)) {
+                // A release was interrupted, and the results it left may have no other completer to release them.
+                release(false);
+            }
+        } while ((result = output.poll(STALL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) == null);
+        return result;
+    }
+
+    /**
+     * Returns a worker loop that applies `function` to every item until interrupted. A function that returns null or throws drops the item.
+     * @param function the work to do on each item. Must be thread safe if several workers run it.
+     * @return a loop to run on each worker thread.
+     */
+    public Runnable worker(Function<? super I, ? extends O> function) {
+        return () -> {
+            try {
+                while (true) {
+                    Ticket<I> ticket = take();
+                    O result;
+                    try {
+                        result = function.apply(ticket.item);
+                    } catch (RuntimeException e) {
+                        result = null;
+                    }
+                    complete(ticket, result);
+                }
+            } catch (InterruptedException ie) {
+                return;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of results waiting in the reorder buffer for an earlier item to complete. Only a snapshot.
+     * @return the reorder buffer depth.
+     */
+    public int reorderDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns the highest reorder buffer depth so far. Close to `window`, it means a slow item often holds back the rest and the window limits throughput.
+     * @return the highest reorder buffer depth.
+     */
+    public int maxReorderDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * Returns the number of items put but not yet released, waiting in the input buffer, being processed or waiting in the reorder buffer.
+     * @return the number of items in flight.
+     */
+    public int inFlight() {
+        return (int) (sequence.get() - released.get());
+    }
+
+    public int window() { return window; }
+
+    /**
+     * Returns the pipe of released results, e.g. for its batch or non-blocking methods.
+     * Results left by an interrupted `complete()` are only released by the next `complete()` or `get()` of this pipe, not by getting from the output pipe directly.
+     * @return the pipe of released results.
+     */
+    public Pipe<O> output() {
+        return output;
+    }
+
+    /**
+     * Releases results from the reorder buffer in order, until the next one has not completed.
+     * Only one thread releases at a time: a thread that finds another releasing leaves a request for it, so a result completed during a release is not missed.
+     * A releaser interrupted while the output buffer is full stops releasing and marks the pipe `stalled`. The requests it leaves are for results behind the one it was releasing, so the next releaser, started by `complete()` or `get()`, releases them all.
+     * @param wait whether to wait for space in the output buffer. Consumers do not, since only they make space: they release what fits and leave the pipe `stalled` again.
+     * @throws InterruptedException if `wait` and the thread is interrupted while waiting for space in the output buffer.
+     */
+    @SuppressWarnings("unchecked")
+    private void release(boolean wait) throws InterruptedException {
+        if (releasing.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            long next = released.get();
+            Object result;
+            while ((result = reorder.get(index(next))) != null) {
+                if (result != DROPPED) {
+                    if (!wait) {
+                        if (!output.tryPut((O) result)) {
+                            stall();
+                            return;
+                        }
+                    } else {
+                        try {
+                            output.put((O) result);
+                        } catch (InterruptedException ie) {
+                            stall();
+                            throw ie;
+                        }
+                    }
+                }
+                reorder.set(index(next), null);
+                depth.decrementAndGet();
+                released.set(++next);
+                waitStrategy.signal();
+            }
+            missed = releasing.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Gives up the release, leaving it to the next `complete()` or `get()`. The requests of other completers are dropped with it, since their results are behind the one not released.
+     */
+    private void stall() {
+        releasing.set(0);
+        // Set after `releasing` is cleared, so a consumer that sees it can start a release.
+        stalled.set(true);
+    }
+
+    private int index(long seq) {
+        return (int) (seq % window);
+    }
+
+    /**
+     * An item with its sequence number, as taken by a worker.
+     * @param <I> the type of the item.
+     */
+    public static final class Ticket<I> {
+        private final long sequence;
+        private final I item;
+
+        Ticket(long sequence, I item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+
+        public long sequence() { return sequence; }
+        public I item() { return item; }
+    }
+}
@@ -0,0 +1,69 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Draws the simulated processing time of each `Record`, in nanoseconds. Used by `Workers` in place of a fixed work interval, so that tests can model real service time distributions.
+ * Implementations use `ThreadLocalRandom`, so one instance can be shared by every `Worker` and drawing allocates nothing.
+ */
+public interface ServiceTime {
+
+    /**
+     * Returns the next processing time.
+     * @return the next processing time, in nanoseconds.
+     */
+    long next();
+
+    /**
+     * Always `mean`.
+     * @param mean the processing time, in nanoseconds.
+     * @return a constant distribution.
+     */
+    static ServiceTime constant(long mean) {
+        return () -> mean;
+    }
+
+    /**
+     * Uniform between `mean / 2` and `mean + mean / 2`, as the original work interval.
+     * @param mean the mean processing time, in nanoseconds.
+     * @return a uniform distribution.
+     */
+    static ServiceTime uniform(long mean) {
+        return () -> mean / 2 + ThreadLocalRandom.current().nextLong(mean + 1);
+    }
+
+    /**
+     * Exponential, i.e. many short times and a long tail, as for the time between independent events.
+     * @param mean the mean processing time, in nanoseconds.
+     * @return an exponential distribution.
+     */
+    static ServiceTime exponential(long mean) {
+        return () -> (long) (-mean * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+    }
+
+    /**
+     * Half of `mean` 90% of the time and 5.5 times `mean` 10% of the time, e.g. a cache hit and a cache miss, with the same overall mean.
+     * @param mean the mean processing time, in nanoseconds.
+     * @return a bimodal distribution.
+     */
+    static ServiceTime bimodal(long mean) {
+        return () -> ThreadLocalRandom.current().nextInt(10) == 0 ? mean * 11 / 2 : mean / 2;
+    }
+
+    /**
+     * Returns a distribution by name. Used by the test runners.
+     * @param name one of `constant`, `uniform`, `exponential` or `bimodal`.
+     * @param mean the mean processing time, in nanoseconds.
+     * @return the named distribution.
+     * @throws IllegalArgumentException if `name` is not a known distribution.
+     */
+    static ServiceTime forName(String name, long mean) {
+        switch (name) {
+            case "constant": return constant(mean);
+            case "uniform": return uniform(mean);
+            case "exponential": return exponential(mean);
+            case "bimodal": return bimodal(mean);
+            default: throw new IllegalArgumentException("Unknown service time distribution: " + name);
+        }
+    }
+}
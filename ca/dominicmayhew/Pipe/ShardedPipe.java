@@ -0,0 +1,162 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * A pipeline that spreads items over several independent `Pipe` shards, so that many producers and consumers do not all contend on one head and one tail.
+ * Each thread has a home shard. Producers put into their home shard, and into the next shard with space if it is full. Consumers get from their home shard, and steal from the other shards if it is empty.
+ * A thread only waits (through the `WaitStrategy`) once every shard is full (empty).
+ *
+ * Items are in FIFO order within a shard, but not across shards: an item may be got before an item that was put earlier into another shard.
+ */
+public class ShardedPipe<T> {
+    private final Pipe<T> shards[];
+    private final WaitStrategy waitStrategy;
+    private final BooleanSupplier hasSpace = this::hasSpace;
+    private final BooleanSupplier hasItem = this::hasItem;
+
+    /**
+     * Instantiates the shards with the default `WaitStrategy` for `mode`.
+     * @param bufSize total size of the buffer, split evenly between the shards.
+     * @param mode type of synchronization method each shard uses.
+     * @param numShards number of shards, e.g. the number of cores.
+     */
+    public ShardedPipe(int bufSize, Pipe.AccessMode mode, int numShards) {
+        this(bufSize, mode, numShards, null);
+    }
+
+    /**
+     * Instantiates the shards. Each shard holds `bufSize / numShards` items, rounded up (and, for `Pipe.AccessMode.lockFree`, rounded up to a power of two).
+     * @param bufSize total size of the buffer, split evenly between the shards.
+     * @param mode type of synchronization method each shard uses.
+     * @param numShards number of shards, e.g. the number of cores.
+     * @param waitStrategy how to wait while every shard is full/empty, or null for the default of `mode`.
+     * @throws IllegalArgumentException if `numShards` is less than 1.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // A generic array cannot be created; every element is a `Pipe<T>`.
+    public ShardedPipe(int bufSize, Pipe.AccessMode mode, int numShards, WaitStrategy waitStrategy) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("Must have at least one shard: " + numShards);
+        }
+        int shardSize = Math.max(1, (bufSize + numShards - 1) / numShards);
+        shards = new Pipe[numShards];
+        for (int i = 0; i < numShards; i++) {
+            // Shards are only accessed without waiting, so their own wait strategy is never used.
+            shards[i] = new Pipe<T>(shardSize, mode, 0, 0, WaitStrategy.busySpin());
+        }
+        if (waitStrategy == null) {
+            waitStrategy = mode == Pipe.AccessMode.semaphore ? WaitStrategy.blocking() : WaitStrategy.busySpin();
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * The interface used by producers. Puts into the home shard of the calling thread, or the next shard with space.
+     * @param item The item to put in the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for space.
+     */
+    public void put(T item) throws InterruptedException {
+        while (!tryPut(item)) {
+            waitStrategy.await(hasSpace);
+        }
+    }
+
+    /**
+     * The interface used by consumers. Gets from the home shard of the calling thread, or steals from the next shard with an item.
+     * @return the object received from the buffer.
+     * @throws InterruptedException if the thread is interrupted while waiting for an item.
+     */
+    public T get() throws InterruptedException {
+        T item;
+        while ((item = tryGet()) == null) {
+            waitStrategy.await(hasItem);
+        }
+        return item;
+    }
+
+    /**
+     * Puts `item` in the pipeline only if some shard has space right now. Never waits.
+     * @param item the item to put in the pipeline.
+     * @return true if the item was put, false if every shard was full.
+     */
+    public boolean tryPut(T item) {
+        int home = home();
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[(home + i) % shards.length].tryPut(item)) {
+                waitStrategy.signal();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Receives an item only if some shard has one right now. Never waits.
+     * @return the object received from the buffer, or null if every shard was empty.
+     */
+    public T tryGet() {
+        int home = home();
+        for (int i = 0; i < shards.length; i++) {
+            T item = shards[(home + i) % shards.length].tryGet();
+            if (item != null) {
+                waitStrategy.signal();
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the total capacity of the shards.
+     * @return the total capacity of the shards.
+     */
+    public int capacity() {
+        return shards.length * shards[0].capacity();
+    }
+
+    /**
+     * Returns the number of items in every shard. Only a snapshot, see `Pipe.size()`.
+     * @return the number of items in the buffer.
+     */
+    public int size() {
+        int size = 0;
+        for (Pipe<T> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return the number of shards.
+     */
+    public int shards() {
+        return shards.length;
+    }
+
+    /**
+     * Threads are given consecutive ids as they are created, so consecutive threads get different home shards.
+     * @return the home shard of the calling thread.
+     */
+    private int home() {
+        return (int) (Thread.currentThread().getId() % shards.length);
+    }
+
+    private boolean hasSpace() {
+        for (Pipe<T> shard : shards) {
+            if (shard.size() < shard.capacity()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasItem() {
+        for (Pipe<T> shard : shards) {
+            if (shard.size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
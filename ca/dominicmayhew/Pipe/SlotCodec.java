@@ -0,0 +1,32 @@
+package ca.dominicmayhew.Pipe;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes fixed-size binary records directly in the slots of a `MappedPipe`, with no intermediate copies.
+ * Implementations must use the absolute `get`/`put` methods of the buffer (e.g. `buf.putLong(offset, value)`), and must not touch more than `size()` bytes from `offset`.
+ */
+public interface SlotCodec<T> {
+
+    /**
+     * Returns the number of bytes every record occupies. Must not change.
+     * @return the number of bytes every record occupies.
+     */
+    int size();
+
+    /**
+     * Writes `item` into `buf` starting at `offset`.
+     * @param item the item to write.
+     * @param buf the shared buffer.
+     * @param offset the first byte of the slot's payload.
+     */
+    void encode(T item, ByteBuffer buf, int offset);
+
+    /**
+     * Reads an item from `buf` starting at `offset`.
+     * @param buf the shared buffer.
+     * @param offset the first byte of the slot's payload.
+     * @return the item read.
+     */
+    T decode(ByteBuffer buf, int offset);
+}
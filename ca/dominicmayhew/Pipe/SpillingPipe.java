@@ -0,0 +1,238 @@
+package ca.dominicmayhew.Pipe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A pipeline that never makes producers wait: when its in-memory ring is full, items spill to append-only memory-mapped segment files on disk, and consumers read them back in FIFO order.
+ * The ring is the fast path and the only place items are kept on the heap, so a burst that consumers cannot keep up with costs disk space instead of heap or stalled producers.
+ *
+ * Once an item has spilled, later puts also go to disk until consumers have read every spilled item, so that each producer's items stay in order. Consumers take from the ring first, which only holds items put before the spill began.
+ * Spilled items are written and read in place by a `SlotCodec`, `segmentRecords` per file. A file is deleted as soon as its last record has been read.
+ * The files are only an overflow: they are deleted by `close()`, and items still on disk are lost.
+ * Each file gets a new unique name, so several pipes, in one process or several, may share a directory without touching each other's files.
+ */
+public class SpillingPipe<T> implements Closeable {
+    private final Pipe<T> ring;
+    private final SlotCodec<T> codec;
+    private final Path directory;
+    private final int segmentRecords;
+    private final WaitStrategy waitStrategy;
+    private final BooleanSupplier hasItem;
+
+    private final ConcurrentLinkedQueue<Segment> segments = new ConcurrentLinkedQueue<>(); // Oldest first; the reader reads the head, the writer appends to the tail.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock readLock = new ReentrantLock();
+    private final AtomicLong written = new AtomicLong(); // Records written to disk. Published after the record, so a reader may read up to here.
+    private final AtomicLong read = new AtomicLong(); // Records read from disk.
+    private Segment writeSegment; // Only used under `writeLock`.
+    private long nextSegmentId = 0; // Only used under `writeLock`.
+    private final AtomicLong segmentsCreated = new AtomicLong();
+
+    /**
+     * Instantiates the pipe with 64Ki records per segment file, and a blocking `WaitStrategy` for consumers.
+     * @param bufSize size of the in-memory ring.
+     * @param mode type of synchronization method of the ring.
+     * @param directory where segment files are created. Created if missing. May be shared with other pipes.
+     * @param codec writes and reads spilled items.
+     * @throws IOException if the directory cannot be created.
+     */
+    public SpillingPipe(int bufSize, Pipe.AccessMode mode, Path directory, SlotCodec<T> codec) throws IOException {
+        this(bufSize, mode, directory, codec, 1 << 16, null);
+    }
+
+    /**
+     * Instantiates the pipe.
+     * @param bufSize size of the in-memory ring.
+     * @param mode type of synchronization method of the ring.
+     * @param directory where segment files are created. Created if missing. May be shared with other pipes.
+     * @param codec writes and reads spilled items.
+     * @param segmentRecords number of records in each segment file.
+     * @param waitStrategy how consumers wait while the pipe is empty, or null for `WaitStrategy.blocking()`.
+     * @throws IOException if the directory cannot be created.
+     * @throws IllegalArgumentException if `segmentRecords` is less than 1 or a segment does not fit in one mapping.
+     */
+    public SpillingPipe(int bufSize, Pipe.AccessMode mode, Path directory, SlotCodec<T> codec, int segmentRecords, WaitStrategy waitStrategy) throws IOException {
+        if (segmentRecords < 1 || (long) segmentRecords * codec.size() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment must hold at least 1 record and fit in one mapping: " + segmentRecords + " records of " + codec.size() + " bytes.");
+        }
+        // The ring is only accessed without waiting, so its own wait strategy is never used.
+        ring = new Pipe<>(bufSize, mode, 0, 0, WaitStrategy.busySpin());
+        this.codec = codec;
+        this.directory = Files.createDirectories(directory);
+        this.segmentRecords = segmentRecords;
+        this.waitStrategy = waitStrategy != null ? waitStrategy : WaitStrategy.blocking();
+        hasItem = () -> ring.size() > 0 || spilled() > 0;
+    }
+
+    /**
+     * The interface used by producers. Puts `item` in the ring, or appends it to disk if the ring is full or items are already on disk. Never waits for consumers.
+     * @param item the item to put in the pipeline.
+     * @throws UncheckedIOException if a segment file cannot be created.
+     */
+    public void put(T item) {
+        if (spilled() > 0 || !ring.tryPut(item)) {
+            spill(item);
+        }
+        waitStrategy.signal();
+    }
+
+    /**
+     * The interface used by consumers.
+     * @return the object received from the pipeline.
+     * @throws InterruptedException if the thread is interrupted while waiting for an item.
+     */
+    public T get() throws InterruptedException {
+        T item;
+        while ((item = tryGet()) == null) {
+            waitStrategy.await(hasItem);
+        }
+        return item;
+    }
+
+    /**
+     * Receives an item only if one is available right now, from the ring or else from disk. Never waits.
+     * @return the object received from the pipeline, or null if it was empty.
+     */
+    public T tryGet() {
+        T item = ring.tryGet();
+        if (item == null && spilled() > 0) {
+            item = unspill();
+        }
+        return item;
+    }
+
+    /**
+     * Returns the number of items on disk. Only a snapshot.
+     * @return the number of items spilled and not yet read.
+     */
+    public long spilled() {
+        return written.get() - read.get();
+    }
+
+    /**
+     * Returns the number of items in the ring and on disk. Only a snapshot.
+     * @return the number of items in the pipeline.
+     */
+    public long size() {
+        return ring.size() + spilled();
+    }
+
+    /**
+     * Returns the capacity of the in-memory ring.
+     * @return the capacity of the ring.
+     */
+    public int capacity() {
+        return ring.capacity();
+    }
+
+    /** Number of items ever spilled to disk. */
+    public long spills() { return written.get(); }
+    /** Number of segment files ever created. */
+    public long segmentsCreated() { return segmentsCreated.get(); }
+    /** Number of segment files currently on disk. */
+    public int segments() { return segments.size(); }
+
+    /**
+     * Deletes every segment file. Items still on disk are lost; the pipe must not be used after closing.
+     * @throws IOException if a file cannot be deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        readLock.lock();
+        try {
+            Segment segment;
+            while ((segment = segments.poll()) != null) {
+                Files.deleteIfExists(segment.file);
+            }
+            writeSegment = null;
+        } finally {
+            readLock.unlock();
+            writeLock.unlock();
+        }
+    }
+
+    private void spill(T item) {
+        writeLock.lock();
+        try {
+            long pos = written.get();
+            int index = (int) (pos % segmentRecords);
+            if (index == 0) {
+                writeSegment = new Segment(nextSegmentId++);
+                segments.add(writeSegment);
+                segmentsCreated.incrementAndGet();
+            }
+            codec.encode(item, writeSegment.buf, index * codec.size());
+            written.set(pos + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create spill segment in " + directory, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the oldest item on disk, deleting its segment file if it was the last record in it.
+     * @return the item read, or null if another consumer read the last item first.
+     */
+    private T unspill() {
+        readLock.lock();
+        try {
+            long pos = read.get();
+            if (pos >= written.get()) {
+                return null;
+            }
+            int index = (int) (pos % segmentRecords);
+            Segment segment = segments.peek();
+            T item = codec.decode(segment.buf, index * codec.size());
+            if (index == segmentRecords - 1) {
+                segments.poll();
+                deleteQuietly(segment.file);
+            }
+            read.set(pos + 1);
+            return item;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Left behind; removed by `close()` at the latest.
+        }
+    }
+
+    /**
+     * One segment file, mapped for its whole length. The channel is closed right after mapping; the mapping stays valid until the segment is garbage collected.
+     * The file is created new with a unique name, starting with the segment's id, so an existing file is never reused.
+     */
+    private final class Segment {
+        final Path file;
+        final MappedByteBuffer buf;
+
+        Segment(long id) throws IOException {
+            file = Files.createTempFile(directory, String.format("spill-%012d-", id), ".seg");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * codec.size());
+            } catch (IOException e) {
+                deleteQuietly(file);
+                throw e;
+            }
+            buf.order(ByteOrder.nativeOrder());
+        }
+    }
+}
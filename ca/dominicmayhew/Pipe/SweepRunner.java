@@ -0,0 +1,244 @@
+package ca.dominicmayhew.Pipe;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs `PipeTest` over a matrix of configurations and writes the results as CSV and JSON.
+ * Every combination of the given parameter values is one cell of the matrix. Each cell runs a number of discarded warmup runs, then a number of measured trials, each in isolation with its own pipe and workers.
+ *
+ * Parameters are given as `key=value1,value2,...` arguments, or as lines of the same form in a file given by `file=path` (blank lines and lines starting with `#` are ignored). Arguments override the file.
+ * Parameter keys are those of `Params.set()`; parameters that are not given keep their `Params` default.
+ * Runner keys: `warmup` (runs per cell, default 1), `trials` (runs per cell, default 3) and `out` (output path without extension, default `sweep`).
+ * e.g. `java ca.dominicmayhew.Pipe.SweepRunner mode=semaphore,lockFree bufSize=5,20,80 creators=10 receivers=1,10 timeOut=2000`
+ */
+public class SweepRunner {
+
+    /**
+     * Runs the sweep described by the arguments.
+     * @param args `key=value` settings, see the class description.
+     * @throws IOException if the parameter file cannot be read or the results cannot be written.
+     * @throws InterruptedException if interrupted during a run.
+     */
+    public static void main(String args[]) throws IOException, InterruptedException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("file=")) {
+                for (String line : Files.readAllLines(Paths.get(arg.substring(5)))) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        put(settings, line);
+                    }
+                }
+            }
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("file=")) {
+                put(settings, arg);
+            }
+        }
+        int warmup = Integer.parseInt(settings.getOrDefault("warmup", "1"));
+        int trials = Integer.parseInt(settings.getOrDefault("trials", "3"));
+        String out = settings.getOrDefault("out", "sweep");
+        settings.remove("warmup");
+        settings.remove("trials");
+        settings.remove("out");
+
+        List<Map<String, String>> cells = expand(settings);
+        List<Cell> results = new ArrayList<>();
+        for (int i = 0; i < cells.size(); i++) {
+            Map<String, String> config = cells.get(i);
+            System.out.println("Cell " + (i + 1) + "/" + cells.size() + ": " + config);
+            Cell cell = new Cell(config);
+            for (int w = 0; w < warmup; w++) {
+                PipeTest.run(params(config));
+            }
+            for (int t = 0; t < trials; t++) {
+                PipeTest.Results trial = PipeTest.run(params(config));
+                System.out.println(String.format("\tTrial %d: %.2f Record/s", t + 1, trial.throughput()));
+                cell.trials.add(trial.metrics());
+            }
+            results.add(cell);
+        }
+
+        writeCsv(Paths.get(out + ".csv"), new ArrayList<>(settings.keySet()), results);
+        writeJson(Paths.get(out + ".json"), results);
+        System.out.println("Wrote " + out + ".csv and " + out + ".json");
+    }
+
+    /**
+     * Adds one `key=value1,value2,...` setting.
+     * @param settings the settings so far.
+     * @param setting the setting to add.
+     */
+    private static void put(Map<String, String> settings, String setting) {
+        int split = setting.indexOf('=');
+        if (split <= 0) {
+            throw new IllegalArgumentException("Expected key=value: " + setting);
+        }
+        settings.put(setting.substring(0, split).trim(), setting.substring(split + 1).trim());
+    }
+
+    /**
+     * Returns every combination of the comma separated values of each setting.
+     * @param settings the settings, each with one or more comma separated values.
+     * @return one map of single values per combination.
+     */
+    private static List<Map<String, String>> expand(Map<String, String> settings) {
+        List<Map<String, String>> cells = new ArrayList<>();
+        cells.add(new LinkedHashMap<>());
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            List<Map<String, String>> expanded = new ArrayList<>();
+            for (Map<String, String> cell : cells) {
+                for (String value : setting.getValue().split(",")) {
+                    Map<String, String> next = new LinkedHashMap<>(cell);
+                    next.put(setting.getKey(), value.trim());
+                    expanded.add(next);
+                }
+            }
+            cells = expanded;
+        }
+        return cells;
+    }
+
+    /**
+     * Returns new `Params` for one run of a cell. Throws if a parameter is unknown, before anything runs.
+     * @param config the single-valued parameters of the cell.
+     * @return the parameters of the run.
+     */
+    private static Params params(Map<String, String> config) {
+        Params params = new Params();
+        for (Map.Entry<String, String> entry : config.entrySet()) {
+            params.set(entry.getKey(), entry.getValue());
+        }
+        return params;
+    }
+
+    /**
+     * Writes one row per trial: the parameters of the cell, the trial number and every metric.
+     * @param path the CSV file.
+     * @param keys the parameter names.
+     * @param cells the results of every cell.
+     * @throws IOException if the file cannot be written.
+     */
+    private static void writeCsv(Path path, List<String> keys, List<Cell> cells) throws IOException {
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(path))) {
+            boolean header = true;
+            for (Cell cell : cells) {
+                for (int t = 0; t < cell.trials.size(); t++) {
+                    Map<String, Double> metrics = cell.trials.get(t);
+                    if (header) {
+                        csv.println(String.join(",", keys) + (keys.isEmpty() ? "" : ",") + "trial," + String.join(",", metrics.keySet()));
+                        header = false;
+                    }
+                    StringBuilder row = new StringBuilder();
+                    for (String key : keys) {
+                        row.append(cell.config.get(key)).append(',');
+                    }
+                    row.append(t + 1);
+                    for (double value : metrics.values()) {
+                        row.append(',').append(value);
+                    }
+                    csv.println(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an array with one object per cell, holding its parameters, every trial and the mean of the trials.
+     * @param path the JSON file.
+     * @param cells the results of every cell.
+     * @throws IOException if the file cannot be written.
+     */
+    private static void writeJson(Path path, List<Cell> cells) throws IOException {
+        try (PrintWriter json = new PrintWriter(Files.newBufferedWriter(path))) {
+            json.println("[");
+            for (int c = 0; c < cells.size(); c++) {
+                Cell cell = cells.get(c);
+                json.println("  {");
+                json.print("    \"config\": {");
+                int i = 0;
+                for (Map.Entry<String, String> entry : cell.config.entrySet()) {
+                    json.print((i++ > 0 ? ", " : "") + quote(entry.getKey()) + ": " + quote(entry.getValue()));
+                }
+                json.println("},");
+                json.println("    \"trials\": [");
+                for (int t = 0; t < cell.trials.size(); t++) {
+                    json.println("      " + toJson(cell.trials.get(t)) + (t < cell.trials.size() - 1 ? "," : ""));
+                }
+                json.println("    ],");
+                json.println("    \"mean\": " + toJson(cell.mean()));
+                json.println("  }" + (c < cells.size() - 1 ? "," : ""));
+            }
+            json.println("]");
+        }
+    }
+
+    private static String toJson(Map<String, Double> metrics) {
+        StringBuilder object = new StringBuilder("{");
+        for (Map.Entry<String, Double> entry : metrics.entrySet()) {
+            if (object.length() > 1) {
+                object.append(", ");
+            }
+            double value = entry.getValue();
+            object.append(quote(entry.getKey())).append(": ").append(Double.isFinite(value) ? Double.toString(value) : "null");
+        }
+        return object.append('}').toString();
+    }
+
+    /**
+     * Returns `s` as a JSON string literal, escaping quotes, backslashes and control characters.
+     * @param s the string to quote.
+     * @return the quoted string.
+     */
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The parameters and trial results of one cell of the matrix.
+     */
+    private static class Cell {
+        final Map<String, String> config;
+        final List<Map<String, Double>> trials = new ArrayList<>();
+
+        Cell(Map<String, String> config) {
+            this.config = config;
+        }
+
+        Map<String, Double> mean() {
+            Map<String, Double> mean = new LinkedHashMap<>();
+            for (Map<String, Double> trial : trials) {
+                for (Map.Entry<String, Double> entry : trial.entrySet()) {
+                    mean.merge(entry.getKey(), entry.getValue() / trials.size(), Double::sum);
+                }
+            }
+            return mean;
+        }
+    }
+}
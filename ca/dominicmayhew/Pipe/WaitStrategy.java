@@ -0,0 +1,268 @@
+package ca.dominicmayhew.Pipe;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Decides how a `Pipe` waits while its buffer is full (for producers) or empty (for consumers).
+ * Chosen when the `Pipe` is instantiated. Trades latency against CPU use: spinning reacts fastest but burns a core, parking frees the core but reacts slower.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Waits until `ready` returns true. `ready` may be evaluated any number of times.
+     * @param ready the condition to wait for, e.g. "there is space in the buffer".
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    default void await(BooleanSupplier ready) throws InterruptedException {
+        await(ready, -1);
+    }
+
+    /**
+     * Waits until `ready` returns true, or until `timeoutNanos` have passed.
+     * @param ready the condition to wait for, e.g. "there is space in the buffer".
+     * @param timeoutNanos the longest time to wait, or a negative number to wait forever.
+     * @return true if `ready` returned true, false if the wait timed out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException;
+
+    /**
+     * Called by the `Pipe` after every put or get, i.e. whenever a waiting thread's condition may have become true.
+     * Only strategies that block need to do anything here.
+     */
+    default void signal() {}
+
+    /**
+     * Spins with `Thread.onSpinWait()` until ready. Lowest latency, uses a full core per waiting thread.
+     * @return a busy spin strategy.
+     */
+    static WaitStrategy busySpin() {
+        return new BusySpin();
+    }
+
+    /**
+     * Spins `spins` times, then calls `Thread.yield()` between checks.
+     * @param spins number of checks before yielding.
+     * @return a spin-then-yield strategy.
+     */
+    static WaitStrategy spinThenYield(int spins) {
+        return new SpinThenYield(spins);
+    }
+
+    /**
+     * Spins `spins` times, then parks for exponentially increasing periods, from 1 microsecond up to `maxParkNanos`.
+     * @param spins number of checks before parking.
+     * @param maxParkNanos longest single park, in nanoseconds.
+     * @return a spin-then-park strategy.
+     */
+    static WaitStrategy spinThenPark(int spins, long maxParkNanos) {
+        return new SpinThenPark(spins, maxParkNanos);
+    }
+
+    /**
+     * Blocks on a condition variable until the `Pipe` signals. No busy waiting involved.
+     * Built on `ReentrantLock`, so virtual threads park cleanly instead of pinning their carrier thread.
+     * Each `Pipe` should have its own instance.
+     * @return a blocking strategy.
+     */
+    static WaitStrategy blocking() {
+        return new Blocking();
+    }
+
+    /**
+     * Switches between spinning, yielding, parking and blocking at runtime, according to the waits it observes. See `AdaptiveWaitStrategy`.
+     * Each `Pipe` should have its own instance.
+     * @return an adaptive strategy.
+     */
+    static AdaptiveWaitStrategy adaptive() {
+        return new AdaptiveWaitStrategy(null);
+    }
+
+    /**
+     * Switches between spinning, yielding, parking and blocking at runtime, according to the waits it observes, and reports every switch.
+     * Each `Pipe` should have its own instance.
+     * @param listener called on every switch, e.g. to log it.
+     * @return an adaptive strategy.
+     */
+    static AdaptiveWaitStrategy adaptive(Consumer<AdaptiveWaitStrategy.Switch> listener) {
+        return new AdaptiveWaitStrategy(listener);
+    }
+
+    /**
+     * Returns a new instance of a strategy by name, with typical settings. Used by the test runners.
+     * @param name one of `default`, `spin`, `yield`, `park`, `blocking` or `adaptive`.
+     * @return the named strategy, or null for `default`, i.e. the default of the pipe's access mode.
+     * @throws IllegalArgumentException if `name` is not a known strategy.
+     */
+    static WaitStrategy forName(String name) {
+        switch (name) {
+            case "default": return null;
+            case "spin": return busySpin();
+            case "yield": return spinThenYield(100);
+            case "park": return spinThenPark(100, 100_000);
+            case "blocking": return blocking();
+            case "adaptive": return adaptive();
+            default: throw new IllegalArgumentException("Unknown wait strategy: " + name);
+        }
+    }
+
+    /**
+     * Busy waits with a spin-loop hint.
+     */
+    final class BusySpin implements WaitStrategy {
+        @Override
+        public boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while busy waiting on the buffer.");
+                }
+                if (timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+                    return false;
+                }
+                Thread.onSpinWait();
+            }
+            return true;
+        }
+
+        public String toString() {
+            return "busySpin";
+        }
+    }
+
+    /**
+     * Busy waits for a number of checks, then yields the processor between checks.
+     */
+    final class SpinThenYield implements WaitStrategy {
+        private final int spins;
+
+        SpinThenYield(int spins) {
+            this.spins = spins;
+        }
+
+        @Override
+        public boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            int attempt = 0;
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while waiting on the buffer.");
+                }
+                if (timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+                    return false;
+                }
+                if (attempt++ < spins) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+            }
+            return true;
+        }
+
+        public String toString() {
+            return "spinThenYield(" + spins + ")";
+        }
+    }
+
+    /**
+     * Busy waits for a number of checks, then parks with a bounded exponential backoff.
+     */
+    final class SpinThenPark implements WaitStrategy {
+        private static final long MIN_PARK_NANOS = 1000;
+        private final int spins;
+        private final long maxParkNanos;
+
+        SpinThenPark(int spins, long maxParkNanos) {
+            this.spins = spins;
+            this.maxParkNanos = Math.max(MIN_PARK_NANOS, maxParkNanos);
+        }
+
+        @Override
+        public boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            int attempt = 0;
+            long parkNanos = MIN_PARK_NANOS;
+            while (!ready.getAsBoolean()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while waiting on the buffer.");
+                }
+                long remaining = timeoutNanos >= 0 ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (attempt++ < spins) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(this, Math.min(parkNanos, remaining));
+                    parkNanos = Math.min(parkNanos << 1, maxParkNanos);
+                }
+            }
+            return true;
+        }
+
+        public String toString() {
+            return "spinThenPark(" + spins + ", " + maxParkNanos + "ns)";
+        }
+    }
+
+    /**
+     * Waits on a condition variable that is signalled by the `Pipe`.
+     * The signalling side only takes the lock when a thread is actually waiting.
+     */
+    final class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        @Override
+        public boolean await(BooleanSupplier ready, long timeoutNanos) throws InterruptedException {
+            if (ready.getAsBoolean()) {
+                return true;
+            }
+            lock.lockInterruptibly();
+            // Registering as a waiter before re-checking `ready` guarantees that a concurrent `signal()` either sees this waiter or its change is seen here.
+            waiters.incrementAndGet();
+            try {
+                long remaining = timeoutNanos;
+                while (!ready.getAsBoolean()) {
+                    if (timeoutNanos < 0) {
+                        changed.await();
+                    } else if (remaining <= 0) {
+                        return false;
+                    } else {
+                        remaining = changed.awaitNanos(remaining);
+                    }
+                }
+                return true;
+            } finally {
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signal() {
+            // Orders the caller's (possibly lazy) publication before the read of `waiters`.
+            VarHandle.fullFence();
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        public String toString() {
+            return "blocking";
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package ca.dominicmayhew.Pipe;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Abstract Superclass for `Creator` and `Receiver`. Provides some shared fields and methods.
  * 
@@ -8,19 +10,31 @@ package ca.dominicmayhew.Pipe;
  */
 
 public abstract class Worker<T> implements Runnable {
+    private static double iterationsPerNano = 0.01; // Refined by `calibrate()`.
+    private static volatile long sink; // Result of `burn()`.
+
+    static {
+        calibrate();
+    }
+
     private int workerId;
     protected int processedCount = 0;
     protected Pipe<T> pipe;
+    protected Params params;
+    protected ServiceTime service;
 
     /**
-     * Takes a Worker ID # and the Pipe that this Worker is attached to.
+     * Takes a Worker ID #, the Pipe that this Worker is attached to and the parameters of the test run.
      * Worker ID is provided by the subclass to allow for separate ID spaces for `Creator` and `Receiver` objects.
      * @param workerId the ID # of the Worker.
      * @param pipe the Pipe this Worker is attached to.
+     * @param params the parameters of the test run.
      */
-    public Worker(int workerId, Pipe<T> pipe) {
+    public Worker(int workerId, Pipe<T> pipe, Params params) {
         this.workerId = workerId;
         this.pipe = pipe;
+        this.params = params;
+        this.service = params.getServiceTime();
     }
 
     /**
@@ -29,9 +43,10 @@ public abstract class Worker<T> implements Runnable {
     public abstract void run();
     /**
      * Used to mark each record with a unique stamp from the `Creator` and the `Processor`.
-     * @return a unique String processing stamp representing the Worker and the number of items it has previously processed.
+     * The Worker ID is packed into the high 32 bits and the number of items processed into the low 32 bits, so stamping allocates nothing.
+     * @return a unique processing stamp representing the Worker and the number of items it has previously processed.
      */
-    protected String getStamp() { return workerId + "." + processedCount; }
+    protected long getStamp() { return ((long) workerId << 32) | (processedCount & 0xFFFFFFFFL); }
     /**
      * Returns the ID integer of this `Worker`.
      * @return the ID integer of this `Worker`.
@@ -39,13 +54,59 @@ public abstract class Worker<T> implements Runnable {
     protected int getId() { return workerId; }
 
     /**
-     * Causes the worker to spin (busy wait) for an interval as prescribed by `Params`.
+     * Simulates processing for a time drawn from `params`' service time distribution.
+     * By default the worker burns the CPU for that time with calibrated work; with `work=park`, or when running on virtual threads, it parks instead, so that it uses no CPU and does not pin a carrier thread.
+     * @throws InterruptedException if the thread is interrupted while parked.
+     */
+    protected void spin() throws InterruptedException {
+        long nanos = service.next();
+        if (params.VIRTUAL_THREADS || params.WORK.equals("park")) {
+            park(nanos);
+        } else {
+            burn(nanos);
+        }
+    }
+
+    /**
+     * Parks until `nanos` have passed. `LockSupport.parkNanos()` may return early, so it is called again until the time is up.
+     * @param nanos how long to park.
+     * @throws InterruptedException if the thread is interrupted while parked.
+     */
+    protected static void park(long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Does CPU work for about `nanos`: a fixed number of iterations per nanosecond, measured once when the class is loaded, rather than polling the clock.
+     * @param nanos how long to work.
+     */
+    protected static void burn(long nanos) {
+        long x = sink | 1;
+        for (long i = (long) (nanos * iterationsPerNano); i > 0; i--) {
+            // xorshift: cheap, and its result is kept so the loop is not optimized away.
+            x ^= x << 13;
+            x ^= x >>> 7;
+            x ^= x << 17;
+        }
+        sink = x;
+    }
+
+    /**
+     * Measures how many iterations of `burn()` run per nanosecond, refining the estimate over a few rounds of about 10 ms, so that the last rounds run compiled code.
      */
-    protected void spin() {
-        int sleepTime = Params.getWorkInterval();
-        long startTime = System.currentTimeMillis();
-        while (System.currentTimeMillis() - startTime < sleepTime)
-            ;
+    private static void calibrate() {
+        for (int round = 0; round < 6; round++) {
+            long start = System.nanoTime();
+            burn(10_000_000);
+            iterationsPerNano = iterationsPerNano * 10_000_000 / Math.max(1, System.nanoTime() - start);
+        }
     }
 
     /**
@@ -0,0 +1,190 @@
+package ca.dominicmayhew.Pipe;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * JMH benchmarks of `Pipe` throughput and per-operation latency for every `Pipe.AccessMode`, across buffer sizes, producer:consumer counts and payload types. Workers do no simulated work, so the numbers reflect the pipe alone.
+ * Each producer:consumer count is an asymmetric `@Group`: `oneToOne` (1:1), `manyToOne` (3:1), `oneToMany` (1:3) and `manyToMany` (2:2). Every group shares one pipe, created for its thread counts so that 1:1 takes the single-producer/single-consumer path of `Pipe.AccessMode.lockFree`.
+ * Payloads: `object` puts one shared object and allocates nothing, `boxed` puts a new `Long` per item, and `primitive` puts `long`s through a `LongPipe`.
+ *
+ * Producers and consumers use the non-blocking `tryPut()`/`tryGet()` and retry until they succeed, checking `Control.stopMeasurement` so that a thread left waiting on a full/empty pipe at the end of an iteration does not hang the benchmark.
+ * So an operation's time includes its retries, but not the `WaitStrategy`, whose effect is measured by `PipeTest`.
+ *
+ * Build and run with e.g. `mvn -P jmh package && java -jar target/benchmarks.jar -prof gc`, narrowed with JMH options such as `-p mode=lockFree -p bufSize=1024 oneToOne`.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Group)
+public class PipeBenchmark {
+    private static final Object ITEM = new Object(); // Shared by every put of the `object` payload.
+
+    @Param({"mutex", "semaphore", "lockFree"})
+    public String mode;
+
+    @Param({"16", "1024"})
+    public int bufSize;
+
+    @Param({"object", "boxed", "primitive"})
+    public String payload;
+
+    private Pipe<Object> pipe; // Null for the `primitive` payload.
+    private LongPipe longs; // Null unless the payload is `primitive`.
+    private boolean boxed;
+
+    /**
+     * The next item of one producer.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        long next = 0;
+    }
+
+    /**
+     * Receives the items of one consumer of `primitive` payloads.
+     */
+    @State(Scope.Thread)
+    public static class Consumer {
+        final long[] dst = new long[1];
+    }
+
+    /**
+     * Creates the pipe of the group, for the number of producers and consumers in it.
+     * @param params the parameters of the benchmark, giving the number of threads running each method of the group.
+     */
+    @Setup(Level.Trial)
+    public void setUp(BenchmarkParams params) {
+        int producers = threads(params, "put");
+        int consumers = threads(params, "get");
+        Pipe.AccessMode accessMode = Pipe.AccessMode.valueOf(mode);
+        boxed = payload.equals("boxed");
+        if (payload.equals("primitive")) {
+            longs = new LongPipe(bufSize, accessMode, producers, consumers, null);
+        } else if (boxed || payload.equals("object")) {
+            pipe = new Pipe<>(bufSize, accessMode, producers, consumers, null);
+        } else {
+            throw new IllegalArgumentException("Unknown payload: " + payload);
+        }
+    }
+
+    @Benchmark
+    @Group("oneToOne")
+    @GroupThreads(1)
+    public void putOneToOne(Producer producer, Control control) {
+        put(producer, control);
+    }
+
+    @Benchmark
+    @Group("oneToOne")
+    @GroupThreads(1)
+    public void getOneToOne(Consumer consumer, Control control, Blackhole blackhole) {
+        get(consumer, control, blackhole);
+    }
+
+    @Benchmark
+    @Group("manyToOne")
+    @GroupThreads(3)
+    public void putManyToOne(Producer producer, Control control) {
+        put(producer, control);
+    }
+
+    @Benchmark
+    @Group("manyToOne")
+    @GroupThreads(1)
+    public void getManyToOne(Consumer consumer, Control control, Blackhole blackhole) {
+        get(consumer, control, blackhole);
+    }
+
+    @Benchmark
+    @Group("oneToMany")
+    @GroupThreads(1)
+    public void putOneToMany(Producer producer, Control control) {
+        put(producer, control);
+    }
+
+    @Benchmark
+    @Group("oneToMany")
+    @GroupThreads(3)
+    public void getOneToMany(Consumer consumer, Control control, Blackhole blackhole) {
+        get(consumer, control, blackhole);
+    }
+
+    @Benchmark
+    @Group("manyToMany")
+    @GroupThreads(2)
+    public void putManyToMany(Producer producer, Control control) {
+        put(producer, control);
+    }
+
+    @Benchmark
+    @Group("manyToMany")
+    @GroupThreads(2)
+    public void getManyToMany(Consumer consumer, Control control, Blackhole blackhole) {
+        get(consumer, control, blackhole);
+    }
+
+    /**
+     * Puts one item, retrying while the pipe is full until the measurement stops.
+     */
+    private void put(Producer producer, Control control) {
+        if (longs != null) {
+            long item = producer.next++;
+            while (!longs.tryPutLong(item) && !control.stopMeasurement) {
+            }
+        } else {
+            Object item = boxed ? Long.valueOf(producer.next++) : ITEM;
+            while (!pipe.tryPut(item) && !control.stopMeasurement) {
+            }
+        }
+    }
+
+    /**
+     * Gets one item, retrying while the pipe is empty until the measurement stops. The item is consumed by `blackhole`, so the get cannot be eliminated.
+     */
+    private void get(Consumer consumer, Control control, Blackhole blackhole) {
+        if (longs != null) {
+            while (longs.drainTo(consumer.dst, 0, 1) == 0 && !control.stopMeasurement) {
+            }
+            blackhole.consume(consumer.dst[0]);
+        } else {
+            Object item;
+            while ((item = pipe.tryGet()) == null && !control.stopMeasurement) {
+            }
+            blackhole.consume(item);
+        }
+    }
+
+    /**
+     * Returns the number of threads running the methods of the group whose names start with `prefix`.
+     */
+    private static int threads(BenchmarkParams params, String prefix) {
+        int threads = 0;
+        int[] counts = params.getThreadGroups();
+        String[] labels = params.getThreadGroupLabels().toArray(new String[0]);
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].startsWith(prefix)) {
+                threads += counts[i];
+            }
+        }
+        return threads;
+    }
+}